@@ -0,0 +1,149 @@
+package se.kth.youeye;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * The ActionDispatcher runs UI actions on its own thread, so that the camera and analysis path
+ * never has to wait for accessibility calls such as performAction or getBoundsInScreen.
+ *
+ * Actions are kept in a queue that never drops what the user asked for. Consecutive SELECT_NEXT
+ * actions that are still waiting are collapsed into a single step of several nodes, while a CLICK
+ * acts as a barrier that is never merged with what comes before or after it. Posted work carries
+ * a key, and work that is still waiting is replaced by newer work with the same key, so that
+ * bursts of accessibility events cannot crowd out the user's actions.
+ */
+public class ActionDispatcher {
+
+    private static final String TAG = "ActionDispatcher";
+
+    /**
+     * Performs the actions taken from the queue, always called on the dispatcher thread.
+     */
+    public interface ActionHandler {
+        void selectNext(int steps);
+        void click();
+    }
+
+    private static class Task {
+        private final int action;
+        private final Object key;
+        private Runnable runnable;
+        private int steps = 1;
+
+        private Task(@UINavigator.ActionTypeDef int action, Object key, Runnable runnable) {
+            this.action = action;
+            this.key = key;
+            this.runnable = runnable;
+        }
+    }
+
+    private final ActionHandler handler;
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private boolean running = true;
+    private int coalescedCount;
+    private int replacedCount;
+
+    public ActionDispatcher(ActionHandler handler) {
+        this.handler = handler;
+        Thread thread = new Thread(this::loop, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues an action for the dispatcher thread. Returns immediately.
+     * @param action the action to perform: SELECT_NEXT or CLICK
+     */
+    public void dispatch(@UINavigator.ActionTypeDef int action) {
+        if (action == UINavigator.NO_ACTION)
+            return;
+        synchronized (queue) {
+            // Nothing runs the queue after quit, so it would only grow
+            if (!running)
+                return;
+            Task last = queue.peekLast();
+            if (action == UINavigator.SELECT_NEXT && last != null && last.action == UINavigator.SELECT_NEXT) {
+                last.steps++;
+                coalescedCount++;
+                return;
+            }
+            enqueue(new Task(action, null, null));
+        }
+    }
+
+    /**
+     * Queues arbitrary work, e.g. refreshing the node list, to be run in order with the actions.
+     * If work with the same key is still waiting, it is replaced by this work and keeps its place
+     * in the queue.
+     * @param key identifies work that only needs to run once, e.g. a refresh
+     * @param runnable the work to run on the dispatcher thread
+     */
+    public void post(Object key, Runnable runnable) {
+        synchronized (queue) {
+            if (!running)
+                return;
+            for (Task task : queue) {
+                if (key.equals(task.key)) {
+                    task.runnable = runnable;
+                    replacedCount++;
+                    if (replacedCount % 100 == 0)
+                        Log.d(TAG, "post: replaced " + replacedCount + " waiting tasks so far");
+                    return;
+                }
+            }
+            enqueue(new Task(UINavigator.NO_ACTION, key, runnable));
+        }
+    }
+
+    /**
+     * Stops the dispatcher thread, waiting tasks are discarded and later ones are ignored.
+     */
+    public void quit() {
+        synchronized (queue) {
+            running = false;
+            queue.clear();
+            queue.notifyAll();
+        }
+    }
+
+    // Must be called while holding the queue lock
+    private void enqueue(Task task) {
+        queue.addLast(task);
+        queue.notifyAll();
+    }
+
+    private void loop() {
+        while (true) {
+            Task task;
+            synchronized (queue) {
+                while (running && queue.isEmpty()) {
+                    try {
+                        queue.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!running)
+                    return;
+                task = queue.removeFirst();
+            }
+
+            try {
+                if (task.runnable != null) {
+                    task.runnable.run();
+                } else if (task.action == UINavigator.SELECT_NEXT) {
+                    if (task.steps > 1)
+                        Log.d(TAG, "loop: advancing by " + task.steps + ", coalesced " + coalescedCount + " so far");
+                    handler.selectNext(task.steps);
+                } else if (task.action == UINavigator.CLICK) {
+                    handler.click();
+                }
+            } catch (RuntimeException e) {
+                // A node that disappears under us must not take the dispatcher thread down with it
+                Log.d(TAG, "loop: task failed " + e);
+            }
+        }
+    }
+}
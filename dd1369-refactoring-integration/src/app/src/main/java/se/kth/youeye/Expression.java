@@ -1,12 +1,9 @@
 package se.kth.youeye;
 
-import android.annotation.SuppressLint;
-import android.media.Image;
 import android.util.Log;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
-import androidx.camera.core.ImageProxy;
 
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
@@ -35,6 +32,9 @@ public class Expression {
 
     public final long timestamp;
 
+    // The detector is expensive to create, so all frames share one
+    private static FaceDetector detector;
+
     private final Float leftEyeOpenProbability;
     private final Float rightEyeOpenProbability;
 
@@ -46,6 +46,10 @@ public class Expression {
     private final Float eulerAngleY;
     private final Float eulerAngleZ;
 
+    // Decision thresholds, see ExpressionCalibrator
+    private float eyeThreshold = ExpressionCalibrator.DEFAULT_EYE_THRESHOLD;
+    private float mouthThreshold = ExpressionCalibrator.DEFAULT_MOUTH_THRESHOLD;
+
     public Expression(Float leftEyeOpenProbability, Float rightEyeOpenProbability,
                       Float eulerAngleX, Float eulerAngleY, Float eulerAngleZ,
                       FaceLandmark mouthBottom, FaceLandmark mouthRight, FaceLandmark mouthLeft) {
@@ -84,44 +88,102 @@ public class Expression {
         }
     }
 
+    /**
+     * Sets the thresholds used by has(), normally given by an ExpressionCalibrator.
+     * @param eyeThreshold the eye open signal below which the eyes count as closed
+     * @param mouthThreshold the mouth open signal below which the mouth counts as closed
+     */
+    void setThresholds(float eyeThreshold, float mouthThreshold) {
+        this.eyeThreshold = eyeThreshold;
+        this.mouthThreshold = mouthThreshold;
+    }
+
+    /**
+     * The eyes count as closed when both eyes are below the threshold, which is the same as
+     * the most open eye being below it.
+     * @return the open probability of the most open eye, or NaN if it could not be classified
+     */
+    float getEyeOpenSignal() {
+        if (leftEyeOpenProbability == null || rightEyeOpenProbability == null)
+            return Float.NaN;
+        return Math.max(leftEyeOpenProbability, rightEyeOpenProbability);
+    }
+
+    /**
+     * How far the bottom of the mouth is below the mouth corners, relative to the width of the
+     * mouth. Dividing by the width makes the signal independent of the distance to the camera
+     * and of the analysis resolution.
+     * @return the mouth open signal, or NaN if the landmarks are missing
+     */
+    float getMouthOpenSignal() {
+        if (mouthBottom == null || mouthRight == null || mouthLeft == null)
+            return Float.NaN;
+        float width = Math.abs(mouthRight.getPosition().x - mouthLeft.getPosition().x);
+        if (width == 0)
+            return Float.NaN;
+        float cornerY = (mouthRight.getPosition().y + mouthLeft.getPosition().y) / 2;
+        return (mouthBottom.getPosition().y - cornerY) / width;
+    }
+
     private boolean getEyesClosed() {
-        return leftEyeOpenProbability < 0.5 && rightEyeOpenProbability < 0.5;
+        float signal = getEyeOpenSignal();
+        return !Float.isNaN(signal) && signal < eyeThreshold;
     }
 
     private boolean getMouthClosed() {
-        //Just a somewhat logical code for the actual logic we'll implement later.
-        return mouthBottom.getPosition().y > (mouthRight.getPosition().y + mouthLeft.getPosition().y)/2;
+        float signal = getMouthOpenSignal();
+        return Float.isNaN(signal) || signal < mouthThreshold;
     }
 
 
     /**
-     * Finds faces in an image and uses the given callback to return an Expression
-     * regarding that face
-     *
-     * @param expressionCallback The callback to call when done
-     * @param imageProxy The image proxy
+     * Closes the shared detector, a new one is created for the next frame. Used to recover from
+     * a detector that stopped completing its tasks.
      */
-    public static void detect(ExpressionCallback expressionCallback, ImageProxy imageProxy) {
-        @SuppressLint("UnsafeExperimentalUsageError") Image mediaImage = imageProxy.getImage();
-        InputImage image = InputImage.fromMediaImage(mediaImage, imageProxy.getImageInfo().getRotationDegrees());
+    public static void resetDetector() {
+        if (detector != null) {
+            detector.close();
+            detector = null;
+        }
+    }
 
-        // Process da image
-        FaceDetectorOptions options =
-                new FaceDetectorOptions.Builder()
-                        .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
-                        .setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_ALL)
-                        .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_ALL) // We need this for getLeftEyeOpenProbability etc
-                        .build();
-        FaceDetector detector = FaceDetection.getClient(options);
+    private static FaceDetector getDetector() {
+        if (detector == null) {
+            FaceDetectorOptions options =
+                    new FaceDetectorOptions.Builder()
+                            .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+                            .setLandmarkMode(FaceDetectorOptions.LANDMARK_MODE_ALL)
+                            .setClassificationMode(FaceDetectorOptions.CLASSIFICATION_MODE_ALL) // We need this for getLeftEyeOpenProbability etc
+                            .build();
+            detector = FaceDetection.getClient(options);
+        }
+        return detector;
+    }
 
+    /**
+     * Finds faces in a preprocessed frame and uses the given callback to return an Expression
+     * regarding that face. The frame is released once the detector is done with it.
+     *
+     * @param expressionCallback The callback to call when done
+     * @param frame The downsampled and upright frame
+     * @param generation The generation of the detector, handed back in onDetectionCompleted
+     */
+    public static void detect(ExpressionCallback expressionCallback, FramePreprocessor.Frame frame,
+                              int generation) {
+        // The frame is already rotated by the FramePreprocessor
+        InputImage image = InputImage.fromByteBuffer(frame.buffer, frame.width, frame.height, 0,
+                InputImage.IMAGE_FORMAT_NV21);
 
         //Listeners are standard async, so maybe those are as well.
-        detector.process(image)
+        getDetector().process(image)
                 .addOnSuccessListener(
                         new OnSuccessListener<List<Face>>() {
                             @Override
                             public void onSuccess(List<Face> faces) {
-                                if (faces != null && faces.size() != 0) {
+                                boolean faceFound = faces != null && faces.size() != 0;
+                                // The faces do not refer to the buffer, so it can be reused already
+                                frame.release(faceFound);
+                                if (faceFound) {
                                     Face face = faces.get(0);
 
                                     Expression expression = new Expression(face.getLeftEyeOpenProbability(),
@@ -134,7 +196,7 @@ public class Expression {
                                             face.getLandmark(FaceLandmark.MOUTH_LEFT));
                                     expressionCallback.handleExpression(expression);
                                 }
-                                imageProxy.close();
+                                expressionCallback.onDetectionCompleted(generation);
                             }
                         })
                 .addOnFailureListener(
@@ -143,7 +205,8 @@ public class Expression {
                             public void onFailure(@NonNull Exception e) {
                                 e.printStackTrace();
                                 Log.d("EYE", "onFailure: NOT SUCCESS!" + e.getMessage());
-                                // Maybe close imageProxy here as well?
+                                frame.release(false);
+                                expressionCallback.onDetectionCompleted(generation);
                             }
                         });
     }
@@ -0,0 +1,159 @@
+package se.kth.youeye;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * The ExpressionCalibrator learns the decision thresholds used by Expression.has for the current
+ * user. Every analyzed face feeds its eye and mouth signals into a streaming two-cluster estimate,
+ * so the memory used is constant no matter how long the service runs. Once both the "open" and
+ * the "closed" cluster of a signal have been observed, the threshold is placed halfway between them.
+ *
+ * The calibrated profile is stored in SharedPreferences so that it survives between sessions.
+ */
+public class ExpressionCalibrator {
+
+    private static final String TAG = "ExpressionCalibrator";
+    private static final String PREFERENCES_NAME = "expression_calibration";
+
+    // The fixed thresholds we fall back to until a signal has been calibrated
+    public static final float DEFAULT_EYE_THRESHOLD = 0.5f;
+    public static final float DEFAULT_MOUTH_THRESHOLD = 0.2f;
+
+    // How many updates we accept between each save of the profile
+    private static final int SAVE_INTERVAL = 500;
+
+    private final SharedPreferences preferences;
+    private final TwoClusterEstimator eyeEstimator;
+    private final TwoClusterEstimator mouthEstimator;
+    private int updatesSinceSave;
+
+    /**
+     * A streaming estimate of a signal that alternates between two states, e.g. eyes open and
+     * eyes closed. Each sample is assigned to the nearest of two centroids, which is then moved
+     * towards the sample with a fixed learning rate. This is an exponentially weighted online
+     * k-means with k = 2, so old sessions fade out slowly as the user's conditions change.
+     */
+    static class TwoClusterEstimator {
+        // How far a centroid moves towards each new sample
+        private static final float LEARNING_RATE = 0.02f;
+        // The number of samples each cluster needs before we trust the estimate
+        static final int MIN_SAMPLES = 30;
+
+        private final float minSeparation;
+        private float lowCentroid;
+        private float highCentroid;
+        private int lowCount;
+        private int highCount;
+
+        /**
+         * @param lowCentroid the initial guess for the low state, e.g. closed eyes
+         * @param highCentroid the initial guess for the high state, e.g. open eyes
+         * @param minSeparation the smallest gap between the centroids that we consider calibrated
+         */
+        TwoClusterEstimator(float lowCentroid, float highCentroid, float minSeparation) {
+            this.lowCentroid = lowCentroid;
+            this.highCentroid = highCentroid;
+            this.minSeparation = minSeparation;
+        }
+
+        void update(float sample) {
+            if (Float.isNaN(sample) || Float.isInfinite(sample))
+                return;
+            if (Math.abs(sample - lowCentroid) <= Math.abs(sample - highCentroid)) {
+                lowCentroid += LEARNING_RATE * (sample - lowCentroid);
+                if (lowCount < MIN_SAMPLES) lowCount++;
+            } else {
+                highCentroid += LEARNING_RATE * (sample - highCentroid);
+                if (highCount < MIN_SAMPLES) highCount++;
+            }
+            // Keep the clusters in order so that "low" always means the low state
+            if (lowCentroid > highCentroid) {
+                float tmp = lowCentroid;
+                lowCentroid = highCentroid;
+                highCentroid = tmp;
+                int tmpCount = lowCount;
+                lowCount = highCount;
+                highCount = tmpCount;
+            }
+        }
+
+        boolean isCalibrated() {
+            return lowCount >= MIN_SAMPLES && highCount >= MIN_SAMPLES
+                    && highCentroid - lowCentroid >= minSeparation;
+        }
+
+        float getThreshold(float fallback) {
+            return isCalibrated() ? (lowCentroid + highCentroid) / 2 : fallback;
+        }
+
+        float getLowCentroid() {
+            return lowCentroid;
+        }
+
+        float getHighCentroid() {
+            return highCentroid;
+        }
+    }
+
+    public ExpressionCalibrator(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        // Eye open probabilities are in [0, 1], the mouth signal is the mouth opening relative
+        // to the mouth width, which is roughly 0.1 closed and above 0.3 wide open.
+        eyeEstimator = new TwoClusterEstimator(0.1f, 0.9f, 0.2f);
+        mouthEstimator = new TwoClusterEstimator(0.1f, 0.4f, 0.05f);
+        load();
+    }
+
+    /**
+     * Feeds the signals of an expression into the estimates and gives the expression the
+     * currently calibrated thresholds.
+     * @param expression the freshly detected expression
+     */
+    public void calibrate(Expression expression) {
+        eyeEstimator.update(expression.getEyeOpenSignal());
+        mouthEstimator.update(expression.getMouthOpenSignal());
+        expression.setThresholds(getEyeThreshold(), getMouthThreshold());
+
+        if (++updatesSinceSave >= SAVE_INTERVAL)
+            save();
+    }
+
+    public float getEyeThreshold() {
+        return eyeEstimator.getThreshold(DEFAULT_EYE_THRESHOLD);
+    }
+
+    public float getMouthThreshold() {
+        return mouthEstimator.getThreshold(DEFAULT_MOUTH_THRESHOLD);
+    }
+
+    /**
+     * Stores the calibrated profile, the write itself is done asynchronously by SharedPreferences.
+     */
+    public void save() {
+        updatesSinceSave = 0;
+        preferences.edit()
+                .putFloat("eyeLow", eyeEstimator.lowCentroid)
+                .putFloat("eyeHigh", eyeEstimator.highCentroid)
+                .putInt("eyeLowCount", eyeEstimator.lowCount)
+                .putInt("eyeHighCount", eyeEstimator.highCount)
+                .putFloat("mouthLow", mouthEstimator.lowCentroid)
+                .putFloat("mouthHigh", mouthEstimator.highCentroid)
+                .putInt("mouthLowCount", mouthEstimator.lowCount)
+                .putInt("mouthHighCount", mouthEstimator.highCount)
+                .apply();
+    }
+
+    private void load() {
+        eyeEstimator.lowCentroid = preferences.getFloat("eyeLow", eyeEstimator.lowCentroid);
+        eyeEstimator.highCentroid = preferences.getFloat("eyeHigh", eyeEstimator.highCentroid);
+        eyeEstimator.lowCount = preferences.getInt("eyeLowCount", 0);
+        eyeEstimator.highCount = preferences.getInt("eyeHighCount", 0);
+        mouthEstimator.lowCentroid = preferences.getFloat("mouthLow", mouthEstimator.lowCentroid);
+        mouthEstimator.highCentroid = preferences.getFloat("mouthHigh", mouthEstimator.highCentroid);
+        mouthEstimator.lowCount = preferences.getInt("mouthLowCount", 0);
+        mouthEstimator.highCount = preferences.getInt("mouthHighCount", 0);
+        Log.d(TAG, "load: eye threshold " + getEyeThreshold() + ", mouth threshold " + getMouthThreshold());
+    }
+}
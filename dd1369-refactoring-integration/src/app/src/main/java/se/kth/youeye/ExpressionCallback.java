@@ -4,5 +4,11 @@ import se.kth.youeye.Expression;
 
 public interface ExpressionCallback{
     public void handleExpression(Expression expression);
+
+    /**
+     * Called once the detector is done with a frame, whether it found a face, found none or failed.
+     * @param generation the generation given to Expression.detect for the frame
+     */
+    public void onDetectionCompleted(int generation);
 }
 
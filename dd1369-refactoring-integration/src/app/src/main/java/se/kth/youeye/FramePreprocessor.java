@@ -0,0 +1,261 @@
+package se.kth.youeye;
+
+import android.util.Log;
+
+import androidx.camera.core.ImageProxy;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * The FramePreprocessor turns camera frames into small NV21 images for the face detector. The
+ * Y/U/V planes are downsampled with nearest neighbour sampling into a reused direct buffer, with
+ * the rotation of the frame applied, after which the ImageProxy is closed right away so that the
+ * camera can deliver the next frame while the detector is still working.
+ *
+ * Counters for the preprocessing time, the time frames wait for the detector, detection latency,
+ * detection rate and dropped frames are logged regularly, so that the analysis resolution can be
+ * traded against accuracy and latency.
+ */
+public class FramePreprocessor {
+
+    private static final String TAG = "FramePreprocessor";
+    // The number of buffers: the frame being detected, a frame waiting for the detector and the
+    // frame being preprocessed. The buffers are reused, frames are not queued up in them
+    private static final int POOL_SIZE = 3;
+    // How often the counters are logged, in frames
+    private static final int STATS_INTERVAL = 100;
+
+    private final int analysisSize;
+    private final ArrayBlockingQueue<ByteBuffer> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final int bufferCapacity;
+    // Increased by reset(), buffers of frames from an earlier generation are not returned to the pool
+    private int generation;
+
+    private long frameCount;
+    private long droppedCount;
+    // Frames that were preprocessed, but replaced by a newer frame before the detector was free
+    private long replacedCount;
+    private long faceCount;
+    private long completedCount;
+    private long preprocessNanos;
+    private long waitNanos;
+    private long detectNanos;
+
+    /**
+     * A downsampled and upright frame, owned by the caller until release() is called.
+     */
+    public class Frame {
+        public final ByteBuffer buffer;
+        public final int width;
+        public final int height;
+        // When preprocessing was done, and when the frame was given to the detector
+        private final long readyNanos;
+        private long detectStartNanos;
+        private final int generation;
+        private boolean released;
+
+        private Frame(ByteBuffer buffer, int width, int height, long readyNanos, int generation) {
+            this.buffer = buffer;
+            this.width = width;
+            this.height = height;
+            this.readyNanos = readyNanos;
+            this.generation = generation;
+        }
+
+        /**
+         * Must be called when the frame is given to the detector, the time before it is counted
+         * as waiting and the time after it as detection.
+         */
+        public void onDetectionStarted() {
+            detectStartNanos = System.nanoTime();
+        }
+
+        /**
+         * Returns the buffer of a frame that was never given to the detector, e.g. because a
+         * newer frame replaced it.
+         */
+        public void discard() {
+            if (released)
+                return;
+            released = true;
+            onFrameDiscarded(this);
+        }
+
+        /**
+         * Returns the buffer to the pool, must be called once the detector is done with the frame.
+         * @param faceFound whether the detector found a face, counted as a measure of accuracy
+         */
+        public void release(boolean faceFound) {
+            if (released)
+                return;
+            released = true;
+            onFrameReleased(this, faceFound);
+        }
+    }
+
+    /**
+     * @param analysisSize the length in pixels of the longest side of the frames given to the
+     *                     detector, frames smaller than this are not upscaled
+     */
+    public FramePreprocessor(int analysisSize) {
+        this.analysisSize = analysisSize;
+        // Room for a frame of any aspect ratio, the luma plane plus the chroma planes at quarter size
+        bufferCapacity = analysisSize * analysisSize * 3 / 2;
+        fillPool();
+    }
+
+    /**
+     * Gives up on all frames in flight and refills the pool with new buffers. Used when the
+     * detector has stopped completing frames, which would otherwise keep their buffers forever.
+     */
+    public void reset() {
+        generation++;
+        pool.clear();
+        fillPool();
+    }
+
+    private void fillPool() {
+        for (int i = 0; i < POOL_SIZE; i++)
+            pool.add(ByteBuffer.allocateDirect(bufferCapacity));
+    }
+
+    /**
+     * Downsamples and rotates a camera frame. The imageProxy is always closed before returning.
+     * @param imageProxy the YUV_420_888 frame from the camera
+     * @return the preprocessed frame, or null if all buffers are in use and the frame was dropped
+     */
+    public Frame process(ImageProxy imageProxy) {
+        long startNanos = System.nanoTime();
+        try {
+            frameCount++;
+            ByteBuffer buffer = pool.poll();
+            if (buffer == null) {
+                droppedCount++;
+                return null;
+            }
+
+            int rotation = imageProxy.getImageInfo().getRotationDegrees();
+            int srcWidth = imageProxy.getWidth();
+            int srcHeight = imageProxy.getHeight();
+            // The size before rotation, even so that the chroma planes line up
+            int scale = Math.max(1, (Math.max(srcWidth, srcHeight) + analysisSize - 1) / analysisSize);
+            int width = (srcWidth / scale) & ~1;
+            int height = (srcHeight / scale) & ~1;
+
+            boolean swap = rotation == 90 || rotation == 270;
+            int outWidth = swap ? height : width;
+            int outHeight = swap ? width : height;
+
+            buffer.clear();
+            ImageProxy.PlaneProxy[] planes = imageProxy.getPlanes();
+            downsampleLuma(planes[0], buffer, width, height, outWidth, outHeight, scale, rotation);
+            downsampleChroma(planes[1], planes[2], buffer, width, height, outWidth, outHeight, scale, rotation);
+            buffer.flip();
+
+            return new Frame(buffer, outWidth, outHeight, System.nanoTime(), generation);
+        } finally {
+            imageProxy.close();
+            preprocessNanos += System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * @return the counters as a single line, e.g. for logging
+     */
+    public String getStats() {
+        long completed = Math.max(completedCount, 1);
+        long processed = Math.max(frameCount - droppedCount, 1);
+        return String.format(Locale.ENGLISH,
+                "size %d: %d frames, %d dropped, %d replaced, preprocess %.2f ms, wait %.2f ms, detect %.2f ms, faces in %.1f%%",
+                analysisSize, frameCount, droppedCount, replacedCount, preprocessNanos / 1e6 / processed,
+                waitNanos / 1e6 / completed, detectNanos / 1e6 / completed, 100.0 * faceCount / completed);
+    }
+
+    private void onFrameReleased(Frame frame, boolean faceFound) {
+        completedCount++;
+        if (faceFound)
+            faceCount++;
+        waitNanos += frame.detectStartNanos - frame.readyNanos;
+        detectNanos += System.nanoTime() - frame.detectStartNanos;
+        if (frame.generation == generation)
+            pool.offer(frame.buffer);
+        if (completedCount % STATS_INTERVAL == 0)
+            Log.d(TAG, getStats());
+    }
+
+    private void onFrameDiscarded(Frame frame) {
+        replacedCount++;
+        if (frame.generation == generation)
+            pool.offer(frame.buffer);
+    }
+
+    /**
+     * Maps a pixel of the rotated output to the unrotated, downsampled image. Rotation is
+     * clockwise, which is how CameraX reports it.
+     * @return the x coordinate in the high 32 bits and the y coordinate in the low 32 bits
+     */
+    private static long unrotate(int x, int y, int width, int height, int rotation) {
+        int ux;
+        int uy;
+        switch (rotation) {
+            case 90:
+                ux = y;
+                uy = height - 1 - x;
+                break;
+            case 180:
+                ux = width - 1 - x;
+                uy = height - 1 - y;
+                break;
+            case 270:
+                ux = width - 1 - y;
+                uy = x;
+                break;
+            default:
+                ux = x;
+                uy = y;
+        }
+        return ((long) ux << 32) | uy;
+    }
+
+    private static void downsampleLuma(ImageProxy.PlaneProxy plane, ByteBuffer out,
+                                       int width, int height, int outWidth, int outHeight,
+                                       int scale, int rotation) {
+        ByteBuffer src = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+        for (int y = 0; y < outHeight; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                long position = unrotate(x, y, width, height, rotation);
+                int sx = (int) (position >> 32) * scale;
+                int sy = (int) position * scale;
+                out.put(src.get(sy * rowStride + sx * pixelStride));
+            }
+        }
+    }
+
+    /**
+     * Writes interleaved V and U samples, as NV21 expects, at half the luma resolution.
+     */
+    private static void downsampleChroma(ImageProxy.PlaneProxy uPlane, ImageProxy.PlaneProxy vPlane,
+                                         ByteBuffer out, int width, int height,
+                                         int outWidth, int outHeight, int scale, int rotation) {
+        ByteBuffer u = uPlane.getBuffer();
+        ByteBuffer v = vPlane.getBuffer();
+        int uRowStride = uPlane.getRowStride();
+        int uPixelStride = uPlane.getPixelStride();
+        int vRowStride = vPlane.getRowStride();
+        int vPixelStride = vPlane.getPixelStride();
+        for (int y = 0; y < outHeight; y += 2) {
+            for (int x = 0; x < outWidth; x += 2) {
+                long position = unrotate(x, y, width, height, rotation);
+                // Chroma is subsampled by two in both directions in the source as well
+                int cx = (int) (position >> 32) * scale / 2;
+                int cy = (int) position * scale / 2;
+                out.put(v.get(cy * vRowStride + cx * vPixelStride));
+                out.put(u.get(cy * uRowStride + cx * uPixelStride));
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package se.kth.youeye;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -15,6 +17,35 @@ public class InputAnalyzer {
     List<InputEvent> inputEvents;
     private final long keepAliveDuration; // The time in ms that we will store old expressions
     private final static String TAG = "InputAnalyzer";
+    // How often the dwell progress is reported while an active expression is held
+    private final static long PROGRESS_INTERVAL_MS = 50;
+    // A dwell is cancelled if no frame has confirmed the active expression for this long,
+    // so that we do not click when the face is lost with the eyes closed
+    private final static long MAX_FRAME_GAP_MS = 400;
+
+    private final DwellListener dwellListener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable dwellTick = this::onDwellTick;
+    // The events of the dwell in progress, longest first, or null if no dwell is in progress
+    private List<InputEvent> dwellEvents;
+    private long dwellStart;
+    private long lastDwellFrame;
+    private boolean dwellFired;
+
+    /**
+     * Receives the progress of a held expression and the actions fired by the dwell timer.
+     * Called on the main thread.
+     */
+    public interface DwellListener {
+        /**
+         * @param qualifyingAction the action that would fire if the expression ended now
+         * @param progress the progress from 0 to 1 towards the next duration threshold, 1 once the
+         *                 longest threshold has been reached, 0 when no expression is held
+         */
+        void onDwellProgress(@UINavigator.ActionTypeDef int qualifyingAction, float progress);
+
+        void onDwellFired(@UINavigator.ActionTypeDef int action);
+    }
 
     /**
      * The input event class serves as a definition for how an input event is raised
@@ -71,17 +102,22 @@ public class InputAnalyzer {
         }
     }
 
-    public InputAnalyzer(long keepAliveDuration) {
+    public InputAnalyzer(long keepAliveDuration, DwellListener dwellListener) {
         expressions = new LinkedList<>();
         inputEvents = new ArrayList<>();
         this.keepAliveDuration = keepAliveDuration;
+        this.dwellListener = dwellListener;
 
         createInputEvents();
     }
 
     /**
      * Analyze a facial expression and see if it matches any of the set input events based
-     * on the stored history of expressions
+     * on the stored history of expressions.
+     *
+     * The longest event of a held expression is fired by the dwell timer as soon as its duration
+     * is reached, see DwellListener. The frame that ends the expression then only confirms it,
+     * while shorter events still fire when the expression ends, since a longer one could win.
      * @param expression the expression to analyze
      * @return the magic constant value for an UI action to perform
      */
@@ -89,6 +125,7 @@ public class InputAnalyzer {
         removeOldExpressions();
 
         long currentTime = System.currentTimeMillis();
+        boolean firedByTimer = updateDwell(expression);
 
         for (InputEvent event : inputEvents) {
             if (expression.has(event.endExpression)) {
@@ -103,6 +140,10 @@ public class InputAnalyzer {
                 // in the correct order for the right one to fire.
                 if (currentTime - lastMatchingExpression.timestamp >= event.durationInMs) {
                     expressions.addFirst(expression);
+                    if (firedByTimer) {
+                        Log.d(TAG, "Confirmed " + event);
+                        return UINavigator.NO_ACTION;
+                    }
                     Log.d(TAG, "Matched " + event);
                     return event.inputAction;
                 }
@@ -113,6 +154,96 @@ public class InputAnalyzer {
         return UINavigator.NO_ACTION;
     }
 
+    /**
+     * Starts the dwell timer when an active expression begins, and stops it when it ends.
+     * @param expression the newest expression
+     * @return true if this expression ends a dwell whose action was already fired by the timer
+     */
+    private boolean updateDwell(Expression expression) {
+        if (dwellEvents != null) {
+            if (expression.has(dwellEvents.get(0).activeExpression)) {
+                lastDwellFrame = expression.timestamp;
+                return false;
+            }
+            boolean fired = dwellFired;
+            stopDwell();
+            return fired;
+        }
+
+        for (InputEvent event : inputEvents) {
+            // The events are sorted, so the first match is the longest event for this expression
+            if (expression.has(event.activeExpression)) {
+                dwellEvents = new ArrayList<>();
+                for (InputEvent other : inputEvents) {
+                    if (other.activeExpression == event.activeExpression)
+                        dwellEvents.add(other);
+                }
+                dwellStart = expression.timestamp;
+                lastDwellFrame = expression.timestamp;
+                dwellFired = false;
+                handler.postDelayed(dwellTick, PROGRESS_INTERVAL_MS);
+                break;
+            }
+        }
+        return false;
+    }
+
+    private void stopDwell() {
+        handler.removeCallbacks(dwellTick);
+        dwellEvents = null;
+        dwellFired = false;
+        dwellListener.onDwellProgress(UINavigator.NO_ACTION, 0);
+    }
+
+    /**
+     * Reports the progress of the dwell in progress, and fires its longest event once the
+     * duration of that event has been reached.
+     */
+    private void onDwellTick() {
+        if (dwellEvents == null || dwellFired)
+            return;
+        long now = System.currentTimeMillis();
+        if (now - lastDwellFrame > MAX_FRAME_GAP_MS) {
+            Log.d(TAG, "onDwellTick: lost the expression, cancelling the dwell");
+            stopDwell();
+            // Otherwise the next end expression would be matched against the history from
+            // before the gap and fire the action we just cancelled
+            expressions.clear();
+            return;
+        }
+
+        long elapsed = now - dwellStart;
+        InputEvent longest = dwellEvents.get(0);
+        if (elapsed >= longest.durationInMs) {
+            dwellFired = true;
+            Log.d(TAG, "Fired " + longest);
+            dwellListener.onDwellProgress(longest.inputAction, 1);
+            dwellListener.onDwellFired(longest.inputAction);
+            return;
+        }
+
+        // Find the threshold we are heading for and the one we have passed, if any
+        int qualifyingAction = UINavigator.NO_ACTION;
+        long previousDuration = 0;
+        long nextDuration = longest.durationInMs;
+        for (int i = dwellEvents.size() - 1; i >= 0; i--) {
+            InputEvent event = dwellEvents.get(i);
+            if (elapsed >= event.durationInMs) {
+                qualifyingAction = event.inputAction;
+                previousDuration = event.durationInMs;
+            } else {
+                nextDuration = event.durationInMs;
+                break;
+            }
+        }
+        float progress = (float) (elapsed - previousDuration) / (nextDuration - previousDuration);
+        dwellListener.onDwellProgress(qualifyingAction, progress);
+
+        // Wake up at the threshold itself if it comes before the next progress update
+        long untilFire = longest.durationInMs - elapsed;
+        handler.postDelayed(dwellTick, Math.min(PROGRESS_INTERVAL_MS, untilFire));
+    }
+
     /**
      * Clean up any expressions older than our keep alive limit
      */
@@ -1,9 +1,11 @@
 package se.kth.youeye;
 
 import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.AccessibilityServiceInfo;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.PowerManager;
 import android.util.Log;
 import android.util.Size;
 import android.view.accessibility.AccessibilityEvent;
@@ -18,21 +20,60 @@ import androidx.core.content.ContextCompat;
 
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 
-public class MainService extends AccessibilityService implements ImageAnalysis.Analyzer, ExpressionCallback {
+public class MainService extends AccessibilityService implements ImageAnalysis.Analyzer, ExpressionCallback,
+        PipelineWatchdog.RecoveryHandler, InputAnalyzer.DwellListener {
     // TODO: Stop the foregroundService when the service is disconnected. Problematic since there isn't any "onServiceDisconnected" afaik. //Arvid
 
+    // The longest side in pixels of the frames given to the face detector
+    private static final int ANALYSIS_SIZE = 480;
+    // The time without frames or detector progress after which the camera pipeline is recovered
+    private static final long STALL_TIMEOUT_MS = 2000;
+
+    // The events the navigation always needs, TYPE_VIEW_SCROLLED is only added while we scroll
+    private static final int NAVIGATION_EVENT_TYPES = AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+            | AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+            | AccessibilityEvent.TYPE_WINDOWS_CHANGED;
+    // The minimum time between two events of the same type. The system only keeps the last event
+    // of each type in between, so the timeout is left out while we scroll, see updateEventSubscription
+    private static final long NOTIFICATION_TIMEOUT_MS = 100;
+    // How often the event rate is logged
+    private static final long EVENT_STATS_INTERVAL_MS = 10000;
+
     private ForegroundService foregroundService;
     private InputAnalyzer inputAnalyzer;
+    private ExpressionCalibrator expressionCalibrator;
+    private FramePreprocessor framePreprocessor;
+    private PipelineWatchdog pipelineWatchdog;
+    private ProcessCameraProvider cameraProvider;
+    // Whether the detector is busy, and the newest frame waiting for it. Only used on the main thread
+    private boolean detectionInFlight;
+    private int detectionGeneration;
+    private FramePreprocessor.Frame pendingFrame;
+
+    // Guards the subscription, so that concurrent changes don't overwrite each other
+    private final Object subscriptionLock = new Object();
+    private volatile boolean scrollEventsEnabled;
+    private long eventStatsStart;
+    private int eventCount;
+    // Event counts by the bit of the event type
+    private final int[] eventTypeCounts = new int[32];
     private UINavigator uiNavigator;
 
 
     protected void onServiceConnected() {
+        updateEventSubscription();
+        framePreprocessor = new FramePreprocessor(ANALYSIS_SIZE);
+        pipelineWatchdog = new PipelineWatchdog(STALL_TIMEOUT_MS, this);
         startCamera();
 
         // We keep the old expressions for 5 seconds, this is probably a reasonable value
-        inputAnalyzer = new InputAnalyzer(5000);
+        inputAnalyzer = new InputAnalyzer(5000, this);
+
+        // Loads the thresholds calibrated for this user in earlier sessions
+        expressionCalibrator = new ExpressionCalibrator(this);
 
         uiNavigator = new UINavigator(this);
 
@@ -52,26 +93,112 @@ public class MainService extends AccessibilityService implements ImageAnalysis.A
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-        // TODO: Only update nodeinfos if the event is of the right type.
-        Log.d("FOO", "onAccessibilityEvent: we got an event: " + event.toString());
+        countEvent(event.getEventType());
         switch (event.getEventType()) {
-            //case AccessibilityEvent.WINDOWS_CHANGE_ADDED:
             case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
-                uiNavigator.resetNodeInfos(getRootInActiveWindow());
+                uiNavigator.resetNodeInfos(event.getWindowId());
                 break;
             case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
-                uiNavigator.refreshNodeInfos(getRootInActiveWindow());
+                uiNavigator.onContentChanged(event);
+                break;
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                uiNavigator.onViewScrolled(event.getWindowId());
+                break;
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+                // Added windows and removed windows are picked up by the refresh itself, only a
+                // window that moved or was resized has to be traversed again
+                if ((event.getWindowChanges() & AccessibilityEvent.WINDOWS_CHANGE_BOUNDS) != 0)
+                    uiNavigator.refreshNodeInfos(event.getWindowId());
+                else
+                    uiNavigator.refreshNodeInfos(-1);
                 break;
             default:
         }
     }
 
+    /**
+     * Subscribes to TYPE_VIEW_SCROLLED while the UINavigator waits for a scroll it started.
+     * Called on the dispatcher thread of the UINavigator, since changing the subscription is a
+     * binder call that the main thread and the camera must not wait for.
+     * @param enabled whether scroll events are needed
+     */
+    public void setScrollEventsEnabled(boolean enabled) {
+        synchronized (subscriptionLock) {
+            if (scrollEventsEnabled == enabled)
+                return;
+            scrollEventsEnabled = enabled;
+            updateEventSubscription();
+        }
+    }
+
+    /**
+     * Narrows the events the system sends us to the ones the current navigation mode needs,
+     * which keeps the rest from being marshalled across binder into our process at all.
+     */
+    private void updateEventSubscription() {
+        synchronized (subscriptionLock) {
+            AccessibilityServiceInfo info = getServiceInfo();
+            if (info == null)
+                return;
+            info.eventTypes = NAVIGATION_EVENT_TYPES;
+            if (scrollEventsEnabled)
+                info.eventTypes |= AccessibilityEvent.TYPE_VIEW_SCROLLED;
+            info.feedbackType = AccessibilityServiceInfo.FEEDBACK_GENERIC;
+            // While a scroll is handled incrementally, every content change has to be seen to tell
+            // the scroll's own changes from others in the same window
+            info.notificationTimeout = scrollEventsEnabled ? 0 : NOTIFICATION_TIMEOUT_MS;
+            setServiceInfo(info);
+        }
+    }
+
+    /**
+     * Counts the received events and logs the event rate regularly, so that the effect of the
+     * subscription can be measured.
+     */
+    private void countEvent(int eventType) {
+        if (eventType == 0)
+            return;
+        long now = System.currentTimeMillis();
+        if (eventStatsStart == 0)
+            eventStatsStart = now;
+        eventCount++;
+        eventTypeCounts[Integer.numberOfTrailingZeros(eventType)]++;
+
+        if (now - eventStatsStart >= EVENT_STATS_INTERVAL_MS) {
+            StringBuilder types = new StringBuilder();
+            for (int i = 0; i < eventTypeCounts.length; i++) {
+                if (eventTypeCounts[i] == 0)
+                    continue;
+                types.append(' ').append(AccessibilityEvent.eventTypeToString(1 << i))
+                        .append('=').append(eventTypeCounts[i]);
+                eventTypeCounts[i] = 0;
+            }
+            Log.d("EVENTS", String.format(Locale.ENGLISH, "%.1f events/s, scroll events %s:%s",
+                    eventCount * 1000.0 / (now - eventStatsStart), scrollEventsEnabled ? "on" : "off", types));
+            eventStatsStart = now;
+            eventCount = 0;
+        }
+    }
+
     @Override
     public void onInterrupt() {
         Log.d("FOO", "onAccessibilityEvent: we got an interrupt!");
         // We need to override this.
     }
 
+    @Override
+    public boolean onUnbind(Intent intent) {
+        if (expressionCalibrator != null)
+            expressionCalibrator.save();
+        if (uiNavigator != null)
+            uiNavigator.quit();
+        if (pipelineWatchdog != null) {
+            pipelineWatchdog.stop();
+            Log.d("EYE", "onUnbind: " + pipelineWatchdog.getStats());
+        }
+        return super.onUnbind(intent);
+    }
+
 
     private void startCamera() {
         Log.d("EYE", "startCamera: entered");
@@ -84,7 +211,7 @@ public class MainService extends AccessibilityService implements ImageAnalysis.A
 
         cameraProviderFuture.addListener(() -> {
             try {
-                ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
+                cameraProvider = cameraProviderFuture.get();
                 bindPreview(cameraProvider);
             } catch (ExecutionException | InterruptedException e) {
                 // No errors need to be handled for this Future.
@@ -98,6 +225,9 @@ public class MainService extends AccessibilityService implements ImageAnalysis.A
         Log.d("EYE", "bindPreview: entered");
         CameraSelector cameraSelector = new CameraSelector.Builder().requireLensFacing(CameraSelector.LENS_FACING_BACK).build(); // TODO: Change to LENS_FACING_FRONT
 
+        // Drop any earlier analyzer, this is also how the watchdog rebinds a stalled one
+        cameraProvider.unbindAll();
+
         ImageAnalysis imageAnalysis = new ImageAnalysis.Builder().setTargetResolution(new Size(1280, 720)).build();
 
         // 1st param: Executor - Something that will call analyze() (async?). Not sure if this is using anything async (other than listener created on row 252).
@@ -105,6 +235,7 @@ public class MainService extends AccessibilityService implements ImageAnalysis.A
         imageAnalysis.setAnalyzer(ContextCompat.getMainExecutor(this), this);
 
         Camera camera = cameraProvider.bindToLifecycle(foregroundService, cameraSelector, imageAnalysis);
+        pipelineWatchdog.start();
         Log.d("EYE", "bindPreview: ended");
     }
 
@@ -123,11 +254,70 @@ public class MainService extends AccessibilityService implements ImageAnalysis.A
      *
      *
      *
+     * The frame is downsampled to ANALYSIS_SIZE by the FramePreprocessor, which closes the
+     * imageProxy before the detector starts, so the next frame is not held up by the detection.
+     * The detector only gets one frame at a time. A frame that arrives while it is busy waits,
+     * and is replaced by any newer frame, so that every result is for the newest frame we had.
+     *
      * See inherited docs for further documentation.
      */
     @Override
     public void analyze(ImageProxy imageProxy) {
-        Expression.detect(this, imageProxy);
+        pipelineWatchdog.onFrameDelivered();
+        FramePreprocessor.Frame frame = framePreprocessor.process(imageProxy);
+        // A null frame means that all buffers are still in use by earlier frames
+        if (frame == null)
+            return;
+        if (detectionInFlight) {
+            if (pendingFrame != null)
+                pendingFrame.discard();
+            pendingFrame = frame;
+            return;
+        }
+        startDetection(frame);
+    }
+
+    private void startDetection(FramePreprocessor.Frame frame) {
+        detectionInFlight = true;
+        detectionGeneration = pipelineWatchdog.onDetectionStarted();
+        frame.onDetectionStarted();
+        Expression.detect(this, frame, detectionGeneration);
+    }
+
+    @Override
+    public void onDetectionCompleted(int generation) {
+        pipelineWatchdog.onDetectionCompleted(generation);
+        // A detector we replaced may still complete, the detection in flight is a newer one
+        if (!detectionInFlight || generation != detectionGeneration)
+            return;
+        detectionInFlight = false;
+        if (pendingFrame != null) {
+            FramePreprocessor.Frame frame = pendingFrame;
+            pendingFrame = null;
+            startDetection(frame);
+        }
+    }
+
+    @Override
+    public void rebindAnalyzer() {
+        if (cameraProvider != null)
+            bindPreview(cameraProvider);
+        else
+            startCamera();
+    }
+
+    @Override
+    public void recreateDetector() {
+        Expression.resetDetector();
+        framePreprocessor.reset();
+        // The detection in flight is lost with the old detector, the next frame starts a new one
+        detectionInFlight = false;
+    }
+
+    @Override
+    public boolean isCameraExpected() {
+        PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        return allPermissionsGranted() && powerManager.isInteractive();
     }
 
     private boolean allPermissionsGranted() {
@@ -137,7 +327,22 @@ public class MainService extends AccessibilityService implements ImageAnalysis.A
         return true;
     }
 
+    /**
+     * Called on the main thread for every detected face. The resulting action is only queued,
+     * the accessibility calls it needs are made on the dispatcher thread of the UINavigator.
+     */
     public void handleExpression(Expression expression) {
+        expressionCalibrator.calibrate(expression);
         uiNavigator.handleEvent(inputAnalyzer.analyze(expression));
     }
+
+    @Override
+    public void onDwellProgress(int qualifyingAction, float progress) {
+        uiNavigator.showDwellProgress(qualifyingAction, progress);
+    }
+
+    @Override
+    public void onDwellFired(int action) {
+        uiNavigator.handleEvent(action);
+    }
 }
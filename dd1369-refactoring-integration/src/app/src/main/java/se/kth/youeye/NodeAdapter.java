@@ -0,0 +1,25 @@
+package se.kth.youeye;
+
+/**
+ * Gives NodeTraversal access to the nodes of a UI tree without depending on the Android classes.
+ * On the device the nodes are AccessibilityNodeInfos, in unit tests they are synthetic trees.
+ *
+ * @param <N> the node type
+ */
+public interface NodeAdapter<N> {
+    int getChildCount(N node);
+
+    /**
+     * @return the child at the given index, or null if it is no longer available
+     */
+    N getChild(N node, int index);
+
+    boolean isClickable(N node);
+
+    boolean isVisibleToUser(N node);
+
+    /**
+     * Fills the given array with the left, top, right and bottom screen coordinates of the node.
+     */
+    void getBoundsInScreen(N node, int[] outBounds);
+}
@@ -0,0 +1,238 @@
+package se.kth.youeye;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * The NodeTraversal class holds the tree walking and selection logic of the UINavigator. It only
+ * talks to the nodes through a NodeAdapter, which lets us run it on a plain JVM against synthetic
+ * trees of any size.
+ *
+ * @param <N> the node type
+ */
+public class NodeTraversal<N> {
+
+    private final NodeAdapter<N> adapter;
+
+    /**
+     * A node together with the screen position it is sorted by. The position is read once per
+     * node instead of twice per comparison, which matters since reading it is a binder call.
+     */
+    private static class PositionedNode<N> {
+        private final N node;
+        private final int top;
+        private final int left;
+
+        private PositionedNode(N node, int top, int left) {
+            this.node = node;
+            this.top = top;
+            this.left = left;
+        }
+    }
+
+    private static final Comparator<PositionedNode<?>> POSITION_ORDER = new Comparator<PositionedNode<?>>() {
+        @Override
+        public int compare(PositionedNode<?> o1, PositionedNode<?> o2) {
+            if (o1.top != o2.top)
+                return Integer.compare(o1.top, o2.top);
+            return Integer.compare(o1.left, o2.left);
+        }
+    };
+
+    public NodeTraversal(NodeAdapter<N> adapter) {
+        this.adapter = adapter;
+    }
+
+    /**
+     * Returns the clickable descendants of a node, ordered top to bottom and then left to right.
+     * @param parent parent node
+     */
+    public List<N> getClickableChildren(N parent) {
+        if (parent == null) {
+            throw new NullPointerException("Tried to get children of null parent.");
+        }
+
+        List<N> clickableNodes = new ArrayList<>();
+        Queue<N> nodesWithChildren = new ArrayDeque<>();
+        nodesWithChildren.add(parent);
+
+        while (!nodesWithChildren.isEmpty()) {
+            N parentNode = nodesWithChildren.remove();
+            int childCount = adapter.getChildCount(parentNode);
+            for (int i = 0; i < childCount; i++) {
+                N childNode = adapter.getChild(parentNode, i);
+                // The child may have been removed since we read the child count
+                if (childNode == null)
+                    continue;
+                if (adapter.isClickable(childNode))
+                    clickableNodes.add(childNode);
+                // TODO: Should we still add the children of a clickable node?
+                if (adapter.getChildCount(childNode) > 0)
+                    nodesWithChildren.add(childNode);
+            }
+        }
+
+        sortByPosition(clickableNodes);
+        return clickableNodes;
+    }
+
+    /**
+     * Sorts the nodes top to bottom and then left to right. The sort is stable, so nodes at the
+     * same position keep their traversal order.
+     * @param nodes the nodes to sort in place
+     */
+    public void sortByPosition(List<N> nodes) {
+        List<PositionedNode<N>> positioned = new ArrayList<>(nodes.size());
+        int[] bounds = new int[4];
+        for (N node : nodes) {
+            adapter.getBoundsInScreen(node, bounds);
+            positioned.add(new PositionedNode<>(node, bounds[1], bounds[0]));
+        }
+        Collections.sort(positioned, POSITION_ORDER);
+        for (int i = 0; i < positioned.size(); i++)
+            nodes.set(i, positioned.get(i).node);
+    }
+
+    /**
+     * Finds the node that is a number of visible nodes after the given index, wrapping around at
+     * the end of the list.
+     * @param nodes the nodes to select among
+     * @param currentIndex the index of the currently selected node
+     * @param steps the number of visible nodes to advance
+     * @return the index of the new node, or -1 if no node is visible to the user
+     */
+    public int nextVisibleIndex(List<N> nodes, int currentIndex, int steps) {
+        int index = currentIndex;
+        for (int step = 0; step < steps; step++) {
+            // Look at each node at most once, so that we stop if no node is visible
+            boolean found = false;
+            for (int i = 0; i < nodes.size(); i++) {
+                index++;
+                if (index >= nodes.size())
+                    index = 0;
+                if (adapter.isVisibleToUser(nodes.get(index))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found)
+                return -1;
+        }
+        return index;
+    }
+
+    /**
+     * Updates a node list after a scroll container has scrolled, without traversing anything but
+     * the container. The nodes the container had before the scroll are replaced by the ones it has
+     * after it, at the place of its first node in the list, or at the end if it had none there.
+     * Scroll containers such as RecyclerView recycle their rows, so a node from before can be in
+     * after with other content at another position, which is why the whole section is replaced.
+     * @param nodes the node list to update in place
+     * @param before the clickable descendants of the container before the scroll
+     * @param after the clickable descendants of the container after the scroll, in position order
+     */
+    public void replaceSection(List<N> nodes, List<N> before, List<N> after) {
+        Set<N> section = new HashSet<>(before);
+        section.addAll(after);
+
+        List<N> updated = new ArrayList<>(nodes.size() + after.size());
+        int position = -1;
+        for (N node : nodes) {
+            if (!section.contains(node))
+                updated.add(node);
+            else if (position < 0)
+                position = updated.size();
+        }
+        updated.addAll(position < 0 ? updated.size() : position, after);
+
+        nodes.clear();
+        nodes.addAll(updated);
+    }
+
+    /**
+     * Reads the position of each node, so that a scroll can be measured against it later.
+     * @param nodes the nodes to read
+     * @return the left and top of each node, by node
+     */
+    public Map<N, int[]> getPositions(List<N> nodes) {
+        Map<N, int[]> positions = new HashMap<>();
+        int[] bounds = new int[4];
+        for (N node : nodes) {
+            adapter.getBoundsInScreen(node, bounds);
+            positions.put(node, new int[] {bounds[0], bounds[1]});
+        }
+        return positions;
+    }
+
+    /**
+     * Measures how far a container scrolled forward from the nodes it had both before and after
+     * the scroll. Rows that were recycled moved back instead and are ignored, and of the other
+     * distances the most common one wins, since the content moved as a whole.
+     * @param before the positions of the nodes before the scroll, see getPositions
+     * @param after the nodes after the scroll
+     * @return the distance the content moved to the left and up, or null if no node tells us
+     */
+    public int[] measureScroll(Map<N, int[]> before, List<N> after) {
+        Map<Long, Integer> counts = new HashMap<>();
+        long best = 0;
+        int bestCount = 0;
+        int[] bounds = new int[4];
+        for (N node : after) {
+            int[] position = before.get(node);
+            if (position == null)
+                continue;
+            adapter.getBoundsInScreen(node, bounds);
+            int deltaX = position[0] - bounds[0];
+            int deltaY = position[1] - bounds[1];
+            if (deltaX < 0 || deltaY < 0 || (deltaX == 0 && deltaY == 0))
+                continue;
+            long delta = ((long) deltaX << 32) | deltaY;
+            Integer count = counts.get(delta);
+            count = count == null ? 1 : count + 1;
+            counts.put(delta, count);
+            if (count > bestCount) {
+                best = delta;
+                bestCount = count;
+            }
+        }
+        if (bestCount == 0)
+            return null;
+        return new int[] {(int) (best >> 32), (int) best};
+    }
+
+    /**
+     * Finds the first node that a scroll brought into its container. A node counts as revealed if
+     * it is inside the container now, but was outside of it before the scroll, i.e. with its
+     * bounds moved back by the scroll distance. The identity of the nodes can't tell us this,
+     * since a recycled row is the same node showing new content.
+     * @param after the clickable descendants of the container after the scroll, in position order
+     * @param containerBounds the bounds of the container as left, top, right, bottom
+     * @param deltaX how far the content scrolled to the left, in pixels
+     * @param deltaY how far the content scrolled up, in pixels
+     * @return the first revealed node, or null if the scroll did not reveal anything
+     */
+    public N findFirstRevealed(List<N> after, int[] containerBounds, int deltaX, int deltaY) {
+        int[] bounds = new int[4];
+        for (N node : after) {
+            adapter.getBoundsInScreen(node, bounds);
+            if (!intersects(containerBounds, bounds[0], bounds[1], bounds[2], bounds[3]))
+                continue;
+            if (!intersects(containerBounds, bounds[0] + deltaX, bounds[1] + deltaY,
+                    bounds[2] + deltaX, bounds[3] + deltaY))
+                return node;
+        }
+        return null;
+    }
+
+    private static boolean intersects(int[] bounds, int left, int top, int right, int bottom) {
+        return left < bounds[2] && right > bounds[0] && top < bounds[3] && bottom > bounds[1];
+    }
+}
@@ -0,0 +1,185 @@
+package se.kth.youeye;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * The PipelineWatchdog makes sure that the camera pipeline keeps running. It tracks when frames
+ * are delivered and when the face detector completes, and if either has made no progress within
+ * the timeout it recovers: a stuck detector is recreated, and a camera that stopped delivering
+ * frames has the analyzer bound again. Without it a single lost frame or detector task could
+ * silently freeze all input for the user.
+ *
+ * Each detector gets a generation number, so that late completions from a detector we replaced
+ * are not taken for progress. Rebinding backs off while the camera keeps failing, e.g. because
+ * another app holds it, and frames are not expected at all while the screen is off.
+ *
+ * All methods must be called on the main thread, which is also where the checks run.
+ */
+public class PipelineWatchdog {
+
+    private static final String TAG = "PipelineWatchdog";
+
+    /**
+     * Performs the recoveries, called on the main thread.
+     */
+    public interface RecoveryHandler {
+        void rebindAnalyzer();
+        void recreateDetector();
+
+        /**
+         * @return false if the camera is known not to deliver frames right now, e.g. because the
+         * screen is off, in which case a lack of frames is not a stall
+         */
+        boolean isCameraExpected();
+    }
+
+    // The longest time we wait between two attempts to rebind the analyzer
+    private static final long MAX_REBIND_INTERVAL_MS = 60000;
+
+    private final long timeoutMs;
+    private final RecoveryHandler recoveryHandler;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable check = this::check;
+
+    private long startedAt;
+    private long lastFrameAt;
+    // The last time the detector completed a frame, or started one after being idle
+    private long lastDetectorProgressAt;
+    private int inFlight;
+    // Increased whenever the detector is recreated
+    private int detectorGeneration;
+    // The time without frames after which we rebind, doubled after every rebind that did not help
+    private long frameTimeoutMs;
+
+    // The time the current stall started, or 0 if the pipeline is running
+    private long stalledSince;
+    private long stallDetectedAt;
+    private int frameStallCount;
+    private int detectorStallCount;
+    private int recoveryCount;
+    private long totalRecoveryMs;
+    private long maxRecoveryMs;
+    private long totalStalledMs;
+
+    /**
+     * @param timeoutMs the time without progress after which the pipeline counts as stalled
+     * @param recoveryHandler the handler that recovers the pipeline
+     */
+    public PipelineWatchdog(long timeoutMs, RecoveryHandler recoveryHandler) {
+        this.timeoutMs = timeoutMs;
+        this.recoveryHandler = recoveryHandler;
+        frameTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Starts the periodic checks, does nothing if they are already running.
+     */
+    public void start() {
+        if (startedAt != 0)
+            return;
+        long now = System.currentTimeMillis();
+        startedAt = now;
+        lastFrameAt = now;
+        lastDetectorProgressAt = now;
+        handler.postDelayed(check, timeoutMs / 2);
+    }
+
+    public void stop() {
+        handler.removeCallbacks(check);
+    }
+
+    /**
+     * Called for every frame the camera delivers to the analyzer.
+     */
+    public void onFrameDelivered() {
+        lastFrameAt = System.currentTimeMillis();
+        frameTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Called when a frame is handed to the face detector.
+     * @return the generation of the detector, to be passed to onDetectionCompleted
+     */
+    public int onDetectionStarted() {
+        if (inFlight == 0)
+            lastDetectorProgressAt = System.currentTimeMillis();
+        inFlight++;
+        return detectorGeneration;
+    }
+
+    /**
+     * Called when the face detector is done with a frame, whether it succeeded or not.
+     * @param generation the generation returned by onDetectionStarted for the frame
+     */
+    public void onDetectionCompleted(int generation) {
+        // Frames from a detector we replaced may still complete or fail as it is closed, which
+        // says nothing about whether the new detector works
+        if (generation != detectorGeneration)
+            return;
+        long now = System.currentTimeMillis();
+        lastDetectorProgressAt = now;
+        inFlight = Math.max(inFlight - 1, 0);
+
+        if (stalledSince != 0) {
+            long recoveryMs = now - stallDetectedAt;
+            recoveryCount++;
+            totalRecoveryMs += recoveryMs;
+            maxRecoveryMs = Math.max(maxRecoveryMs, recoveryMs);
+            totalStalledMs += now - stalledSince;
+            stalledSince = 0;
+            Log.d(TAG, "onDetectionCompleted: recovered in " + recoveryMs + " ms, " + getStats());
+        }
+    }
+
+    /**
+     * @return the counters as a single line, e.g. for logging
+     */
+    public String getStats() {
+        long now = System.currentTimeMillis();
+        long uptime = Math.max(now - startedAt, 1);
+        long stalled = totalStalledMs + (stalledSince != 0 ? now - stalledSince : 0);
+        return String.format(Locale.ENGLISH,
+                "%d frame stalls, %d detector stalls, %d recoveries, recovery %d ms mean %d ms max, available %.2f%%",
+                frameStallCount, detectorStallCount, recoveryCount,
+                recoveryCount == 0 ? 0 : totalRecoveryMs / recoveryCount, maxRecoveryMs,
+                100.0 * (uptime - stalled) / uptime);
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        if (inFlight > 0 && now - lastDetectorProgressAt > timeoutMs) {
+            detectorStallCount++;
+            onStall(lastDetectorProgressAt, now);
+            Log.d(TAG, "check: detector made no progress for " + (now - lastDetectorProgressAt) + " ms, recreating it");
+            inFlight = 0;
+            detectorGeneration++;
+            lastDetectorProgressAt = now;
+            recoveryHandler.recreateDetector();
+        } else if (!recoveryHandler.isCameraExpected()) {
+            // Start counting again once the camera should be running
+            lastFrameAt = now;
+            frameTimeoutMs = timeoutMs;
+        } else if (now - lastFrameAt > frameTimeoutMs) {
+            frameStallCount++;
+            onStall(lastFrameAt, now);
+            Log.d(TAG, "check: no frame for " + (now - lastFrameAt) + " ms, rebinding the analyzer");
+            // Give the camera longer each time before we try again
+            lastFrameAt = now;
+            frameTimeoutMs = Math.min(frameTimeoutMs * 2, MAX_REBIND_INTERVAL_MS);
+            recoveryHandler.rebindAnalyzer();
+        }
+        handler.postDelayed(check, timeoutMs / 2);
+    }
+
+    private void onStall(long lastProgressAt, long now) {
+        // A stall that continues through several recovery attempts is counted as one
+        if (stalledSince == 0) {
+            stalledSince = lastProgressAt;
+            stallDetectedAt = now;
+        }
+    }
+}
@@ -9,31 +9,34 @@ import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.WindowManager;
+import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
 import android.widget.Button;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.annotation.IntDef;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 import static android.content.Context.WINDOW_SERVICE;
 
 /**
  * The UINavigator class serves the purpose of navigating the screen by taking an InputEvent and
  * performing an action related to that event.
+ *
+ * All work on the node list is done on the thread of an ActionDispatcher, the overlay views are
+ * only touched from the main thread.
  */
 
-public class UINavigator {
+public class UINavigator implements ActionDispatcher.ActionHandler {
 
     // We use the @IntDef notation to ensure safer handling of our our magic constants
     @Retention(RetentionPolicy.SOURCE)
@@ -46,11 +49,71 @@ public class UINavigator {
 
     private final MainService mainService;
     private final FrameLayout layout;
+    private final ActionDispatcher dispatcher;
+    private final NodeTraversal<AccessibilityNodeInfo> traversal = new NodeTraversal<>(new AccessibilityNodeAdapter());
+    private final WindowNodeCollector collector = new WindowNodeCollector(traversal);
+    // Keys of the work posted to the dispatcher, a burst of events only queues each of them once
+    private static final String RESET_TASK = "reset";
+    private static final String REFRESH_TASK = "refresh";
+    private static final String SCROLL_TASK = "scroll";
+    private static final String SETTLE_TASK = "settle";
+    private static final String SCROLL_CHANGE_TASK = "scrollChange";
+    // The time after a scroll during which the node list of its window is updated incrementally
+    private static final long SCROLL_SETTLE_MS = 1000;
     private int currentNodeIndex;
     private List<AccessibilityNodeInfo> clickableNodes;
     private ImageView selectedHighlighter;
     private static final String TAG = "UINavigator";
     TextView debugView;
+    private final ProgressBar dwellProgress;
+
+    // The container we scrolled last and its clickable nodes, only used on the dispatcher thread
+    private AccessibilityNodeInfo scrollContainer;
+    private List<AccessibilityNodeInfo> scrollContainerNodes;
+    // Where the nodes of the container were before the scroll, to measure the scroll distance with
+    private Map<AccessibilityNodeInfo, int[]> scrollContainerPositions;
+    private boolean scrollSelectionMade;
+    // The window of a scroll that has not settled yet, read on the main thread to hold back refreshes
+    private volatile int scrollWindowId = -1;
+    // Copies of the content change events of that window, waiting to be checked on the dispatcher
+    private final List<AccessibilityEvent> scrollChanges = new ArrayList<>();
+    private volatile long scrollRequestedAt;
+    private final Runnable settleTimeout = () -> dispatcher.post(SETTLE_TASK, this::settleScroll);
+
+    /**
+     * Lets NodeTraversal read the real accessibility tree.
+     */
+    private static class AccessibilityNodeAdapter implements NodeAdapter<AccessibilityNodeInfo> {
+        @Override
+        public int getChildCount(AccessibilityNodeInfo node) {
+            return node.getChildCount();
+        }
+
+        @Override
+        public AccessibilityNodeInfo getChild(AccessibilityNodeInfo node, int index) {
+            return node.getChild(index);
+        }
+
+        @Override
+        public boolean isClickable(AccessibilityNodeInfo node) {
+            return node.isClickable();
+        }
+
+        @Override
+        public boolean isVisibleToUser(AccessibilityNodeInfo node) {
+            return node.isVisibleToUser();
+        }
+
+        @Override
+        public void getBoundsInScreen(AccessibilityNodeInfo node, int[] outBounds) {
+            Rect rect = new Rect();
+            node.getBoundsInScreen(rect);
+            outBounds[0] = rect.left;
+            outBounds[1] = rect.top;
+            outBounds[2] = rect.right;
+            outBounds[3] = rect.bottom;
+        }
+    }
 
     public UINavigator(MainService mainService) {
         this.mainService = mainService;
@@ -75,11 +138,13 @@ public class UINavigator {
 
         // Debug view
         debugView = layout.findViewById(R.id.textView);
+        dwellProgress = layout.findViewById(R.id.dwellProgress);
+
 
+        dispatcher = new ActionDispatcher(this);
 
         currentNodeIndex = 0;
-        clickableNodes = getClickableChildren(mainService.getRootInActiveWindow());
-        Log.d("click", "onServiceConnected: clickableNodes" + clickableNodes);
+        clickableNodes = new ArrayList<>();
 
         // Set up the highlighting rectangle
         ShapeDrawable shapeDrawable = new ShapeDrawable(new RectShape());
@@ -90,7 +155,9 @@ public class UINavigator {
         selectedHighlighter.setImageDrawable(shapeDrawable);
         selectedHighlighter.setScaleType(ImageView.ScaleType.FIT_XY);
         layout.addView(selectedHighlighter);
-        highlightNode(clickableNodes.get(currentNodeIndex));
+        // The first traversal is done on the dispatcher thread like all others, it selects and
+        // highlights the first visible node once it is done
+        dispatcher.post(REFRESH_TASK, () -> refreshNodeInfos(mainService.getWindows()));
 
         // Set up the navigation buttons
         configureNextButton();
@@ -99,144 +166,352 @@ public class UINavigator {
     }
 
     /**
-     * On events, this method calls a suitable method to perform an action depending on the type of
-     * the event.
+     * On events, this method queues a suitable action on the dispatcher thread depending on the
+     * type of the event. It never blocks on accessibility calls.
      * @param eventType the event type: SELECT_NEXT or CLICK
      */
     public void handleEvent(int eventType) {
         Log.d("click", "Handling event: " + eventType);
-        switch (eventType) {
-            case SELECT_NEXT:
-                selectNext();
-                break;
-            case CLICK:
-                click();
+        dispatcher.dispatch(eventType);
+    }
+
+    /**
+     * Shows how far the user has come towards the next action while holding an expression.
+     * Must be called on the main thread.
+     * @param qualifyingAction the action that would fire if the expression ended now
+     * @param progress the progress from 0 to 1 towards the next duration threshold
+     */
+    public void showDwellProgress(@ActionTypeDef int qualifyingAction, float progress) {
+        if (qualifyingAction == NO_ACTION && progress <= 0) {
+            dwellProgress.setVisibility(View.INVISIBLE);
+            return;
         }
+        dwellProgress.setVisibility(View.VISIBLE);
+        dwellProgress.setProgress(Math.round(progress * dwellProgress.getMax()));
+        // The secondary progress shows that the bar has already passed a threshold
+        dwellProgress.setSecondaryProgress(qualifyingAction == NO_ACTION ? 0 : dwellProgress.getMax());
+    }
+
+    /**
+     * Stops the dispatcher thread and the traversal pool, should be called when the service goes away.
+     */
+    public void quit() {
+        dispatcher.quit();
+        collector.shutdown();
     }
 
     /**
      * Click on the currently selected node.
      */
-    private void click() {
-        clickableNodes.get(currentNodeIndex).performAction(AccessibilityNodeInfo.ACTION_CLICK);
+    @Override
+    public void click() {
+        if (clickableNodes.isEmpty()) {
+            Log.d(TAG, "click: no clickable nodes");
+            return;
+        }
+        AccessibilityNodeInfo node = clickableNodes.get(currentNodeIndex);
+        node.performAction(AccessibilityNodeInfo.ACTION_CLICK);
 
         // Debug
-        CharSequence s = clickableNodes.get(currentNodeIndex).getClassName();
-        if (s == null) s = "text = null";
-        debugView.setText(s);
+        CharSequence s = node.getClassName();
+        final CharSequence text = s == null ? "text = null" : s;
+        debugView.post(() -> debugView.setText(text));
     }
 
     /**
-     * Traverse to the next node of the UI tree
+     * Traverse forward in the UI tree, skipping nodes that are not visible to the user. The
+     * highlight is only moved once, after all steps have been taken. If the selection would leave
+     * a container that can scroll further, the container is scrolled instead and the selection
+     * continues with the revealed nodes once the scroll is done, see onViewScrolled.
      * TODO: Maybe use getTraversalAfter() instead?
+     * @param steps the number of visible nodes to advance
      */
-    private void selectNext() {
+    @Override
+    public void selectNext(int steps) {
+        advance(steps, true);
+    }
+
+    private void advance(int steps, boolean mayScroll) {
         // Update child index
         if (clickableNodes != null && clickableNodes.size() > 0) {
-            boolean hasVisibleNodes = false;
-            // TODO: This should maybe be done in updateNodeInfos()
-            // Checks that we have at least one visible node.
-            for (int i = 0; i < clickableNodes.size(); i++) {
-                if (clickableNodes.get(i).isVisibleToUser()) {
-                    hasVisibleNodes = true;
-                    break;
+            for (int step = 0; step < steps; step++) {
+                int index = traversal.nextVisibleIndex(clickableNodes, currentNodeIndex, 1);
+                if (index < 0) {
+                    Log.d(TAG, "selectNext: current tree has no nodes visible to the user!");
+                    return;
                 }
+                if (mayScroll && scrollIfLeavingContainer(index))
+                    break;
+                currentNodeIndex = index;
             }
-            if (!hasVisibleNodes) {
-                Log.d(TAG, "selectNext: current tree has no nodes visible to the user!");
-                return;
-            }
-            currentNodeIndex++;
-            if (currentNodeIndex >= clickableNodes.size())
-                currentNodeIndex = 0;
-            if (!clickableNodes.get(currentNodeIndex).isVisibleToUser())
-                selectNext();
-            highlightNode(clickableNodes.get(currentNodeIndex)); // Continue if selected is invisible.
+            highlightNode(clickableNodes.get(currentNodeIndex));
         } else {
             Log.d(TAG, "selectNext: no clickable nodes");
         }
     }
 
     /**
-     * Updates the accessibility node info. Will be called when node info changes
-     * @param root node to be updated
+     * Scrolls the container of the selected node forward if the next node is outside of it, or
+     * if the selection is about to wrap around to the top.
+     * @param nextIndex the index of the node that would be selected next
+     * @return true if a scroll was started
      */
-    public void resetNodeInfos(AccessibilityNodeInfo root) {
-        clickableNodes = getClickableChildren(root);
-        currentNodeIndex = clickableNodes.size() - 1;
-        selectNext();
-        currentNodeIndex = Math.max(currentNodeIndex, 0);
+    private boolean scrollIfLeavingContainer(int nextIndex) {
+        if (currentNodeIndex < 0 || currentNodeIndex >= clickableNodes.size())
+            return false;
+        AccessibilityNodeInfo container = findScrollableAncestor(clickableNodes.get(currentNodeIndex));
+        if (container == null)
+            return false;
+        if (nextIndex > currentNodeIndex) {
+            Rect containerBounds = new Rect();
+            Rect nextBounds = new Rect();
+            container.getBoundsInScreen(containerBounds);
+            clickableNodes.get(nextIndex).getBoundsInScreen(nextBounds);
+            if (containerBounds.contains(nextBounds))
+                return false;
+        }
+
+        List<AccessibilityNodeInfo> before = traversal.getClickableChildren(container);
+        // Set before scrolling, the content change events of the scroll may arrive right away
+        scrollRequestedAt = System.currentTimeMillis();
+        scrollWindowId = container.getWindowId();
+        mainService.setScrollEventsEnabled(true);
+        if (!container.performAction(AccessibilityNodeInfo.ACTION_SCROLL_FORWARD)) {
+            endScroll();
+            return false;
+        }
+        Log.d(TAG, "scrollIfLeavingContainer: scrolling " + container.getClassName());
+        scrollContainer = container;
+        scrollContainerNodes = before;
+        scrollContainerPositions = traversal.getPositions(before);
+        scrollSelectionMade = false;
+        layout.removeCallbacks(settleTimeout);
+        layout.postDelayed(settleTimeout, SCROLL_SETTLE_MS);
+        return true;
     }
 
-    public void refreshNodeInfos(AccessibilityNodeInfo root) {
-        Log.d(TAG, "refreshNodeInfos: We entered");
-        AccessibilityNodeInfo selected = clickableNodes.get(currentNodeIndex);
-        resetNodeInfos(root);
-        for (int i = 0; i < clickableNodes.size(); i++) {
-            if (clickableNodes.get(i).equals(selected)) {
-                currentNodeIndex = i;
-                Log.d(TAG, "refreshNodeInfos: We found a node, index " + currentNodeIndex);
-                highlightNode(clickableNodes.get(currentNodeIndex));
-                return;
-            }
+    /**
+     * Ends a scroll once it has settled, after which content changes of its window are handled
+     * by refreshNodeInfos again.
+     */
+    private void settleScroll() {
+        if (scrollWindowId == -1 || System.currentTimeMillis() - scrollRequestedAt < SCROLL_SETTLE_MS)
+            return;
+        endScroll();
+    }
+
+    /**
+     * Stops handling content changes of the scrolled window incrementally. Only called on the
+     * dispatcher thread, since it changes the event subscription.
+     */
+    private void endScroll() {
+        scrollWindowId = -1;
+        mainService.setScrollEventsEnabled(false);
+    }
+
+    /**
+     * @return the closest ancestor of the node that can scroll forward, or null if there is none
+     */
+    private static AccessibilityNodeInfo findScrollableAncestor(AccessibilityNodeInfo node) {
+        AccessibilityNodeInfo parent = node.getParent();
+        while (parent != null) {
+            if (parent.isScrollable() && parent.getActionList().contains(
+                    AccessibilityNodeInfo.AccessibilityAction.ACTION_SCROLL_FORWARD))
+                return parent;
+            parent = parent.getParent();
         }
-        Log.d(TAG, "refreshNodeInfos: No node was found.");
+        return null;
     }
 
     /**
-     * Returns the relevant children of the currently selected node. Relevant: nodes used by user
-     * @param parent parent node
+     * Queues an incremental update of the node list if the scrolled view belongs to a scroll we
+     * started. Only the scroll container is traversed, and its nodes are replaced in the list
+     * instead of rebuilding the list of the whole window. Bursts of scroll events are merged into
+     * a single update. The scroll deltas of the events are not used, since the notification
+     * timeout merges the events and only the last delta of a burst reaches us.
+     * @param windowId the id of the window of the scrolled view
      */
-    private List<AccessibilityNodeInfo> getClickableChildren(AccessibilityNodeInfo parent) {
-        if (parent == null) {
-            throw new NullPointerException("Tried to get children of null parent.");
+    public void onViewScrolled(int windowId) {
+        if (windowId != -1 && windowId == scrollWindowId)
+            dispatcher.post(SCROLL_TASK, this::applyScroll);
+    }
+
+    private void applyScroll() {
+        int windowId = scrollWindowId;
+        if (scrollContainer == null || windowId == -1)
+            return;
+        if (!scrollContainer.refresh()) {
+            // The container is gone, fall back to traversing the window
+            endScroll();
+            collector.invalidate(windowId);
+            refreshNodeInfos(mainService.getWindows());
+            return;
         }
+        Rect containerBounds = new Rect();
+        scrollContainer.getBoundsInScreen(containerBounds);
 
-        List<AccessibilityNodeInfo> clickableNodes = new ArrayList<>();
-        Queue<AccessibilityNodeInfo> nodesWithChildren = new ArrayDeque<AccessibilityNodeInfo>();
-        nodesWithChildren.add(parent);
-
-        while (!nodesWithChildren.isEmpty()) {
-            AccessibilityNodeInfo parentNode = nodesWithChildren.remove();
-            for (int i = 0; i < parentNode.getChildCount(); i++) {
-                AccessibilityNodeInfo childNode = parentNode.getChild(i);
-                if (childNode.isClickable())
-                    clickableNodes.add(childNode);
-                // TODO: Should we still add the children of a clickable node?
-                if (childNode.getChildCount() > 0)
-                    nodesWithChildren.add(childNode);
-            }
+        AccessibilityNodeInfo selected = clickableNodes.isEmpty() ? null : clickableNodes.get(currentNodeIndex);
+        List<AccessibilityNodeInfo> after = traversal.getClickableChildren(scrollContainer);
+        // If no node stayed in view we assume that the container scrolled by a page, as most do
+        int[] distance = traversal.measureScroll(scrollContainerPositions, after);
+        if (distance == null)
+            distance = new int[] {0, containerBounds.height()};
+        collector.applyScroll(windowId, scrollContainerNodes, after);
+        traversal.replaceSection(clickableNodes, scrollContainerNodes, after);
+        AccessibilityNodeInfo firstRevealed = traversal.findFirstRevealed(after, new int[] {
+                containerBounds.left, containerBounds.top, containerBounds.right, containerBounds.bottom},
+                distance[0], distance[1]);
+        scrollContainerNodes = after;
+        scrollContainerPositions = traversal.getPositions(after);
+
+        // A scroll may report several steps, we move on to the revealed nodes after the first one
+        int index = -1;
+        if (!scrollSelectionMade && firstRevealed != null) {
+            index = clickableNodes.indexOf(firstRevealed);
+            scrollSelectionMade = index >= 0;
+        }
+        if (index < 0 && selected != null)
+            index = clickableNodes.indexOf(selected);
+        if (index >= 0) {
+            currentNodeIndex = index;
+            highlightNode(clickableNodes.get(currentNodeIndex));
+        } else {
+            currentNodeIndex = clickableNodes.size() - 1;
+            advance(1, false);
+            currentNodeIndex = Math.max(currentNodeIndex, 0);
         }
+    }
 
-        Collections.sort(clickableNodes, new Comparator<AccessibilityNodeInfo>() {
-            @Override
-            public int compare(AccessibilityNodeInfo o1, AccessibilityNodeInfo o2) {
-                Rect o1Rect = new Rect();
-                Rect o2Rect = new Rect();
-                o1.getBoundsInScreen(o1Rect);
-                o2.getBoundsInScreen(o2Rect);
-                if (o1Rect.top != o2Rect.top)
-                    return o1Rect.top - o2Rect.top;
-                return o1Rect.left - o2Rect.left;
-            }
+    /**
+     * Queues a rebuild of the node list from all windows, selecting the first visible node of the
+     * given window. Will be called when the window state changes.
+     * @param windowId the id of the window that changed
+     */
+    public void resetNodeInfos(int windowId) {
+        collector.invalidate(windowId);
+        dispatcher.post(RESET_TASK, () -> {
+            endScroll();
+            resetNodeInfos(mainService.getWindows(), windowId);
         });
+    }
+
+    /**
+     * Queues a rebuild of the node list from all windows that keeps the current selection if it
+     * still exists. Only the given window is traversed again, the others come from the cache.
+     * Will be called when the window content changes or windows are added or removed.
+     * @param windowId the id of the window whose content changed, or -1 if no window content changed
+     */
+    public void refreshNodeInfos(int windowId) {
+        if (windowId != -1)
+            collector.invalidate(windowId);
+        dispatcher.post(REFRESH_TASK, () -> refreshNodeInfos(mainService.getWindows()));
+    }
+
+    /**
+     * Handles a content change, see refreshNodeInfos. While a scroll of the window is being handled
+     * incrementally, most changes come from the scroll itself, so the window is only traversed
+     * again for changes whose source is outside the scroll container. The source is read on the
+     * dispatcher thread, from a copy of the event since the event itself is recycled.
+     * @param event the TYPE_WINDOW_CONTENT_CHANGED event
+     */
+    public void onContentChanged(AccessibilityEvent event) {
+        int windowId = event.getWindowId();
+        if (windowId == -1 || windowId != scrollWindowId) {
+            refreshNodeInfos(windowId);
+            return;
+        }
+        synchronized (scrollChanges) {
+            scrollChanges.add(AccessibilityEvent.obtain(event));
+        }
+        dispatcher.post(SCROLL_CHANGE_TASK, this::checkScrollChanges);
+    }
+
+    private void checkScrollChanges() {
+        List<AccessibilityEvent> events;
+        synchronized (scrollChanges) {
+            events = new ArrayList<>(scrollChanges);
+            scrollChanges.clear();
+        }
+        List<Integer> changedWindows = new ArrayList<>();
+        for (AccessibilityEvent event : events) {
+            if (!changedWindows.contains(event.getWindowId()) && !isInScrollContainer(event.getSource()))
+                changedWindows.add(event.getWindowId());
+            event.recycle();
+        }
+        if (changedWindows.isEmpty())
+            return;
+        for (int windowId : changedWindows)
+            collector.invalidate(windowId);
+        refreshNodeInfos(mainService.getWindows());
+    }
+
+    /**
+     * @return true if the node is the container of the scroll in progress or one of its
+     * descendants, false if it is not or if we can't tell
+     */
+    private boolean isInScrollContainer(AccessibilityNodeInfo node) {
+        if (scrollWindowId == -1 || scrollContainer == null)
+            return false;
+        while (node != null) {
+            if (node.equals(scrollContainer))
+                return true;
+            node = node.getParent();
+        }
+        return false;
+    }
+
+    /**
+     * Updates the accessibility node info.
+     * @param windows the windows on screen
+     * @param windowId the window to select the first visible node in
+     */
+    private void resetNodeInfos(List<AccessibilityWindowInfo> windows, int windowId) {
+        clickableNodes = collector.collect(windows);
+        // Start just before the first node of the window, or at the end to select the first node at all
+        currentNodeIndex = clickableNodes.size() - 1;
+        for (int i = 0; i < clickableNodes.size(); i++) {
+            if (clickableNodes.get(i).getWindowId() == windowId) {
+                currentNodeIndex = i - 1;
+                break;
+            }
+        }
+        advance(1, false);
+        currentNodeIndex = Math.max(currentNodeIndex, 0);
+    }
 
-        return clickableNodes;
+    private void refreshNodeInfos(List<AccessibilityWindowInfo> windows) {
+        Log.d(TAG, "refreshNodeInfos: We entered");
+        AccessibilityNodeInfo selected = clickableNodes.isEmpty() ? null : clickableNodes.get(currentNodeIndex);
+        clickableNodes = collector.collect(windows);
+        int index = selected == null ? -1 : clickableNodes.indexOf(selected);
+        if (index >= 0) {
+            currentNodeIndex = index;
+            Log.d(TAG, "refreshNodeInfos: We found a node, index " + currentNodeIndex);
+            highlightNode(clickableNodes.get(currentNodeIndex));
+            return;
+        }
+        Log.d(TAG, "refreshNodeInfos: No node was found.");
+        currentNodeIndex = clickableNodes.size() - 1;
+        advance(1, false);
+        currentNodeIndex = Math.max(currentNodeIndex, 0);
     }
 
     /**
-     * Draws a box around the selected node. Changes the layoutParams and coordinates of the
-     * selectedHighlighter to match the bounds for the AccessibilityNodeInfo.
+     * Draws a box around the selected node. The bounds are read on the calling thread, then the
+     * layoutParams and coordinates of the selectedHighlighter are changed on the main thread to
+     * match the bounds for the AccessibilityNodeInfo.
      * @param nodeInfo info about the node to be highlighted
      */
     private void highlightNode (AccessibilityNodeInfo nodeInfo) {
         Rect boundsRect = new Rect();
-        clickableNodes.get(currentNodeIndex).getBoundsInScreen(boundsRect);
-        selectedHighlighter.requestLayout();
-        selectedHighlighter.getLayoutParams().width = boundsRect.right - boundsRect.left;
-        selectedHighlighter.getLayoutParams().height = boundsRect.bottom - boundsRect.top;
-        selectedHighlighter.setX(boundsRect.left);
-        selectedHighlighter.setY(boundsRect.top);
+        nodeInfo.getBoundsInScreen(boundsRect);
+        selectedHighlighter.post(() -> {
+            selectedHighlighter.getLayoutParams().width = boundsRect.right - boundsRect.left;
+            selectedHighlighter.getLayoutParams().height = boundsRect.bottom - boundsRect.top;
+            selectedHighlighter.setX(boundsRect.left);
+            selectedHighlighter.setY(boundsRect.top);
+            selectedHighlighter.requestLayout();
+        });
     }
 
     /**
@@ -249,7 +524,7 @@ public class UINavigator {
         findButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                selectNext();
+                dispatcher.dispatch(SELECT_NEXT);
             }
         });
     }
@@ -266,7 +541,7 @@ public class UINavigator {
         clickButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
-                click();
+                dispatcher.dispatch(CLICK);
             }
         });
     }
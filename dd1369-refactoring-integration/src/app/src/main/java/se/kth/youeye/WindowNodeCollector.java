@@ -0,0 +1,170 @@
+package se.kth.youeye;
+
+import android.graphics.Rect;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+import android.view.accessibility.AccessibilityWindowInfo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The WindowNodeCollector gathers the clickable nodes of every interactive window on the screen,
+ * such as split-screen apps, the system bars, dialogs and the keyboard. Each window is traversed
+ * on its own on a small background pool, and the result is kept until the window is invalidated,
+ * so that a change in one window does not make us walk the others again.
+ *
+ * The windows are ordered top to bottom and then left to right, and their nodes are merged in that
+ * order into a single list.
+ */
+public class WindowNodeCollector {
+
+    private static final String TAG = "WindowNodeCollector";
+    private static final int POOL_SIZE = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final NodeTraversal<AccessibilityNodeInfo> traversal;
+    private final ExecutorService pool;
+    // The clickable nodes of each window, by window id. Only used on the calling thread of collect
+    private final Map<Integer, List<AccessibilityNodeInfo>> windowNodes = new HashMap<>();
+    // Windows whose content changed since they were traversed, written from any thread
+    private final Set<Integer> dirtyWindows = new HashSet<>();
+
+    /**
+     * A window together with the screen position it is ordered by.
+     */
+    private static class PositionedWindow {
+        private final AccessibilityWindowInfo window;
+        private final Rect bounds = new Rect();
+
+        private PositionedWindow(AccessibilityWindowInfo window) {
+            this.window = window;
+            window.getBoundsInScreen(bounds);
+        }
+    }
+
+    public WindowNodeCollector(NodeTraversal<AccessibilityNodeInfo> traversal) {
+        this.traversal = traversal;
+        pool = Executors.newFixedThreadPool(POOL_SIZE, runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Marks a window to be traversed again on the next collect.
+     * @param windowId the id of the window whose content changed
+     */
+    public void invalidate(int windowId) {
+        synchronized (dirtyWindows) {
+            dirtyWindows.add(windowId);
+        }
+    }
+
+    /**
+     * Returns the clickable nodes of all given windows. Windows that have not been seen before or
+     * that have been invalidated are traversed in parallel, the others are taken from the cache.
+     * @param windows the windows currently on screen, e.g. from AccessibilityService.getWindows()
+     * @return the merged node list
+     */
+    public List<AccessibilityNodeInfo> collect(List<AccessibilityWindowInfo> windows) {
+        List<PositionedWindow> positioned = new ArrayList<>();
+        for (AccessibilityWindowInfo window : windows) {
+            // Our own overlay only holds the debug buttons and the highlight
+            if (window.getType() != AccessibilityWindowInfo.TYPE_ACCESSIBILITY_OVERLAY)
+                positioned.add(new PositionedWindow(window));
+        }
+        Collections.sort(positioned, new Comparator<PositionedWindow>() {
+            @Override
+            public int compare(PositionedWindow o1, PositionedWindow o2) {
+                if (o1.bounds.top != o2.bounds.top)
+                    return o1.bounds.top - o2.bounds.top;
+                return o1.bounds.left - o2.bounds.left;
+            }
+        });
+
+        Set<Integer> dirty;
+        synchronized (dirtyWindows) {
+            dirty = new HashSet<>(dirtyWindows);
+            dirtyWindows.clear();
+        }
+
+        // Start traversing the windows that need it, then forget windows that are gone
+        Map<Integer, Future<List<AccessibilityNodeInfo>>> pending = new HashMap<>();
+        Set<Integer> presentWindows = new HashSet<>();
+        for (PositionedWindow p : positioned) {
+            final AccessibilityWindowInfo window = p.window;
+            int id = window.getId();
+            presentWindows.add(id);
+            if (dirty.contains(id) || !windowNodes.containsKey(id)) {
+                pending.put(id, pool.submit(new Callable<List<AccessibilityNodeInfo>>() {
+                    @Override
+                    public List<AccessibilityNodeInfo> call() {
+                        AccessibilityNodeInfo root = window.getRoot();
+                        if (root == null)
+                            return Collections.emptyList();
+                        return traversal.getClickableChildren(root);
+                    }
+                }));
+            }
+        }
+        windowNodes.keySet().retainAll(presentWindows);
+
+        for (Map.Entry<Integer, Future<List<AccessibilityNodeInfo>>> entry : pending.entrySet()) {
+            try {
+                windowNodes.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException | InterruptedException e) {
+                Log.d(TAG, "collect: traversal of window " + entry.getKey() + " failed " + e);
+                windowNodes.remove(entry.getKey());
+                // Try again on the next collect
+                invalidate(entry.getKey());
+            }
+        }
+        if (!pending.isEmpty())
+            Log.d(TAG, "collect: traversed " + pending.size() + " of " + positioned.size() + " windows");
+
+        List<AccessibilityNodeInfo> nodes = new ArrayList<>();
+        for (PositionedWindow p : positioned) {
+            List<AccessibilityNodeInfo> list = windowNodes.get(p.window.getId());
+            if (list != null)
+                nodes.addAll(list);
+        }
+        return nodes;
+    }
+
+    /**
+     * Updates the cached nodes of a window after one of its scroll containers has scrolled, see
+     * NodeTraversal.replaceSection. The window stays invalidated if it was, e.g. because of a change
+     * outside the scroll container.
+     * @param windowId the window of the scroll container
+     * @param before the clickable descendants of the container before the scroll
+     * @param after the clickable descendants of the container after the scroll
+     */
+    public void applyScroll(int windowId, List<AccessibilityNodeInfo> before,
+                            List<AccessibilityNodeInfo> after) {
+        List<AccessibilityNodeInfo> cached = windowNodes.get(windowId);
+        if (cached == null)
+            return;
+        List<AccessibilityNodeInfo> updated = new ArrayList<>(cached);
+        traversal.replaceSection(updated, before, after);
+        windowNodes.put(windowId, updated);
+    }
+
+    /**
+     * Stops the background pool, should be called when the service goes away.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,89 @@
+package se.kth.youeye;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the streaming two-cluster estimate behind the ExpressionCalibrator with synthetic signals.
+ */
+public class ExpressionCalibratorTest {
+
+    private static final float DELTA = 0.05f;
+    private static final float FALLBACK = -1;
+
+    @Test
+    public void estimator_convergesToBothClusters() {
+        ExpressionCalibrator.TwoClusterEstimator estimator =
+                new ExpressionCalibrator.TwoClusterEstimator(0.1f, 0.9f, 0.2f);
+        Random random = new Random(1369);
+        // A user whose eyes are never fully open or fully closed
+        for (int i = 0; i < 2000; i++) {
+            float centre = random.nextBoolean() ? 0.3f : 0.7f;
+            estimator.update(centre + (random.nextFloat() - 0.5f) * 0.1f);
+        }
+
+        assertTrue(estimator.isCalibrated());
+        assertEquals(0.3f, estimator.getLowCentroid(), DELTA);
+        assertEquals(0.7f, estimator.getHighCentroid(), DELTA);
+        assertEquals(0.5f, estimator.getThreshold(FALLBACK), DELTA);
+    }
+
+    @Test
+    public void estimator_keepsTheClustersInOrder() {
+        // Initial guesses in the wrong order are swapped by the first update
+        ExpressionCalibrator.TwoClusterEstimator estimator =
+                new ExpressionCalibrator.TwoClusterEstimator(0.9f, 0.1f, 0.2f);
+        estimator.update(0.5f);
+        assertTrue(estimator.getLowCentroid() < estimator.getHighCentroid());
+
+        Random random = new Random(1369);
+        for (int i = 0; i < 1000; i++) {
+            estimator.update(random.nextFloat());
+            assertTrue(estimator.getLowCentroid() <= estimator.getHighCentroid());
+        }
+    }
+
+    @Test
+    public void estimator_ignoresInvalidSamples() {
+        ExpressionCalibrator.TwoClusterEstimator estimator =
+                new ExpressionCalibrator.TwoClusterEstimator(0.1f, 0.9f, 0.2f);
+        estimator.update(Float.NaN);
+        estimator.update(Float.POSITIVE_INFINITY);
+        assertEquals(0.1f, estimator.getLowCentroid(), 0);
+        assertEquals(0.9f, estimator.getHighCentroid(), 0);
+    }
+
+    @Test
+    public void estimator_needsMinSamplesInEachCluster() {
+        ExpressionCalibrator.TwoClusterEstimator estimator =
+                new ExpressionCalibrator.TwoClusterEstimator(0.1f, 0.9f, 0.2f);
+        int minSamples = ExpressionCalibrator.TwoClusterEstimator.MIN_SAMPLES;
+        for (int i = 0; i < minSamples; i++)
+            estimator.update(0.9f);
+        for (int i = 0; i < minSamples - 1; i++)
+            estimator.update(0.1f);
+        assertFalse(estimator.isCalibrated());
+        assertEquals(FALLBACK, estimator.getThreshold(FALLBACK), 0);
+
+        estimator.update(0.1f);
+        assertTrue(estimator.isCalibrated());
+        assertEquals(0.5f, estimator.getThreshold(FALLBACK), DELTA);
+    }
+
+    @Test
+    public void estimator_needsMinSeparation() {
+        // Two states that are too close together to tell apart reliably
+        ExpressionCalibrator.TwoClusterEstimator estimator =
+                new ExpressionCalibrator.TwoClusterEstimator(0.1f, 0.9f, 0.2f);
+        for (int i = 0; i < 5000; i++)
+            estimator.update(i % 2 == 0 ? 0.45f : 0.55f);
+
+        assertEquals(0.45f, estimator.getLowCentroid(), DELTA);
+        assertEquals(0.55f, estimator.getHighCentroid(), DELTA);
+        assertFalse(estimator.isCalibrated());
+        assertEquals(FALLBACK, estimator.getThreshold(FALLBACK), 0);
+    }
+}
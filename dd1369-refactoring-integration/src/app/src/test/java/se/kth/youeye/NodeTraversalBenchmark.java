@@ -0,0 +1,176 @@
+package se.kth.youeye;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures how the traversal, sort, refresh and selection done by the UINavigator scale with the
+ * size of the UI tree, using synthetic trees on the host JVM. The results are printed as one row
+ * per tree size so that the scaling curves can be compared between runs.
+ *
+ * Timings on a shared machine are too noisy to fail a build on, so the test instead fails if the
+ * number of adapter calls, which stand for binder calls on a device, grows faster than linearly.
+ */
+public class NodeTraversalBenchmark {
+
+    private static final int FAN_OUT = 4;
+    private static final int MIN_DEPTH = 3;
+    private static final int MAX_DEPTH = 8;
+    private static final double CLICKABLE_DENSITY = 0.3;
+    private static final int PAGES = 20;
+    private static final long SEED = 1369;
+    // Scaling exponent of the adapter calls above which we consider the curve a regression. All
+    // operations make a fixed number of calls per node, reading the bounds once per comparison
+    // instead would already give about 1.15 over these tree sizes
+    private static final double MAX_SCALING_EXPONENT = 1.05;
+    // The number of selections measured in a row
+    private static final int SELECTIONS = 1000;
+    // The minimum time we spend measuring each operation
+    private static final long MIN_MEASURE_NANOS = 50_000_000L;
+
+    private static class Result {
+        int nodes;
+        int clickable;
+        double traverseNanos;
+        double sortNanos;
+        double refreshNanos;
+        double selectNanos;
+        long traverseBytes;
+        long traverseCalls;
+        long sortCalls;
+        long refreshCalls;
+        long selectCalls;
+    }
+
+    // The selected indices are summed here so that the JIT cannot drop the selection loop
+    private long selectionSink;
+
+    @Test
+    public void scaling_adapterCallsStayLinear() {
+        List<Result> results = new ArrayList<>();
+        for (int depth = MIN_DEPTH; depth <= MAX_DEPTH; depth++)
+            results.add(measure(depth));
+
+        System.out.println("UINavigator scaling, fan-out " + FAN_OUT + ", clickable density " + CLICKABLE_DENSITY);
+        System.out.println(String.format(Locale.ENGLISH, "%8s %9s %12s %12s %12s %10s %12s %10s %10s %10s %10s",
+                "nodes", "clickable", "traverse_us", "sort_us", "refresh_us", "select_ns", "traverse_kb",
+                "trav_calls", "sort_calls", "ref_calls", "sel_calls"));
+        for (Result r : results) {
+            System.out.println(String.format(Locale.ENGLISH, "%8d %9d %12.1f %12.1f %12.1f %10.1f %12d %10d %10d %10d %10d",
+                    r.nodes, r.clickable, r.traverseNanos / 1000, r.sortNanos / 1000, r.refreshNanos / 1000,
+                    r.selectNanos, r.traverseBytes / 1024, r.traverseCalls, r.sortCalls, r.refreshCalls,
+                    r.selectCalls));
+        }
+
+        // Small trees are dominated by fixed overhead, so the exponent is taken between the
+        // second smallest and the largest tree
+        Result small = results.get(1);
+        Result large = results.get(results.size() - 1);
+        System.out.println(String.format(Locale.ENGLISH,
+                "Time scaling exponents: traverse %.2f, sort %.2f, refresh %.2f, select %.2f",
+                exponent(small.nodes, small.traverseNanos, large.nodes, large.traverseNanos),
+                exponent(small.clickable, small.sortNanos, large.clickable, large.sortNanos),
+                exponent(small.nodes, small.refreshNanos, large.nodes, large.refreshNanos),
+                exponent(small.nodes, small.selectNanos, large.nodes, large.selectNanos)));
+
+        double traverse = exponent(small.nodes, small.traverseCalls, large.nodes, large.traverseCalls);
+        double sort = exponent(small.clickable, small.sortCalls, large.clickable, large.sortCalls);
+        double refresh = exponent(small.nodes, small.refreshCalls, large.nodes, large.refreshCalls);
+        double select = exponent(small.nodes, small.selectCalls, large.nodes, large.selectCalls);
+        System.out.println(String.format(Locale.ENGLISH,
+                "Call scaling exponents: traverse %.2f, sort %.2f, refresh %.2f, select %.2f",
+                traverse, sort, refresh, select));
+
+        assertTrue("traversal scales with exponent " + traverse, traverse < MAX_SCALING_EXPONENT);
+        assertTrue("sort scales with exponent " + sort, sort < MAX_SCALING_EXPONENT);
+        assertTrue("refresh scales with exponent " + refresh, refresh < MAX_SCALING_EXPONENT);
+        assertTrue("selection scales with exponent " + select, select < MAX_SCALING_EXPONENT);
+    }
+
+    private Result measure(int depth) {
+        final SyntheticNode root = SyntheticNode.build(depth, FAN_OUT, CLICKABLE_DENSITY, PAGES, SEED);
+        final SyntheticNode.Adapter adapter = new SyntheticNode.Adapter();
+        final NodeTraversal<SyntheticNode> traversal = new NodeTraversal<>(adapter);
+        final List<SyntheticNode> nodes = traversal.getClickableChildren(root);
+
+        Result result = new Result();
+        result.nodes = SyntheticNode.size(depth, FAN_OUT);
+        result.clickable = nodes.size();
+
+        result.traverseNanos = bestNanos(() -> traversal.getClickableChildren(root));
+        long bytesBefore = allocatedBytes();
+        long callsBefore = adapter.calls;
+        traversal.getClickableChildren(root);
+        result.traverseBytes = allocatedBytes() - bytesBefore;
+        result.traverseCalls = adapter.calls - callsBefore;
+
+        final List<SyntheticNode> shuffled = new ArrayList<>(nodes);
+        final Random random = new Random(SEED);
+        result.sortNanos = bestNanos(() -> {
+            Collections.shuffle(shuffled, random);
+            traversal.sortByPosition(shuffled);
+        });
+        callsBefore = adapter.calls;
+        traversal.sortByPosition(shuffled);
+        result.sortCalls = adapter.calls - callsBefore;
+
+        // A refresh rebuilds the list and looks for the previously selected node in it
+        final SyntheticNode selected = nodes.get(nodes.size() / 2);
+        result.refreshNanos = bestNanos(() -> traversal.getClickableChildren(root).indexOf(selected));
+        callsBefore = adapter.calls;
+        traversal.getClickableChildren(root).indexOf(selected);
+        result.refreshCalls = adapter.calls - callsBefore;
+
+        result.selectNanos = bestNanos(() -> select(traversal, nodes)) / SELECTIONS;
+        callsBefore = adapter.calls;
+        select(traversal, nodes);
+        result.selectCalls = adapter.calls - callsBefore;
+
+        return result;
+    }
+
+    private void select(NodeTraversal<SyntheticNode> traversal, List<SyntheticNode> nodes) {
+        int index = 0;
+        for (int i = 0; i < SELECTIONS; i++) {
+            index = traversal.nextVisibleIndex(nodes, index, 1);
+            selectionSink += index;
+        }
+    }
+
+    /**
+     * Runs the operation repeatedly for a while and returns the fastest run, which is the least
+     * disturbed by JIT compilation and garbage collection.
+     */
+    private static double bestNanos(Runnable operation) {
+        long best = Long.MAX_VALUE;
+        long start = System.nanoTime();
+        int runs = 0;
+        while (runs < 5 || System.nanoTime() - start < MIN_MEASURE_NANOS) {
+            long before = System.nanoTime();
+            operation.run();
+            best = Math.min(best, System.nanoTime() - before);
+            runs++;
+        }
+        return best;
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    private static double exponent(double smallSize, double smallTime, double largeSize, double largeTime) {
+        return Math.log(largeTime / smallTime) / Math.log(largeSize / smallSize);
+    }
+}
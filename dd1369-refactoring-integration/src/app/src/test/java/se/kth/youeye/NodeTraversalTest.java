@@ -0,0 +1,161 @@
+package se.kth.youeye;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the traversal and selection logic of the UINavigator on synthetic trees.
+ */
+public class NodeTraversalTest {
+
+    private static final int FAN_OUT = 4;
+    private static final double CLICKABLE_DENSITY = 0.3;
+    private static final int PAGES = 20;
+    private static final long SEED = 1369;
+
+    @Test
+    public void traversal_findsAllClickableNodesInOrder() {
+        SyntheticNode root = SyntheticNode.build(5, FAN_OUT, CLICKABLE_DENSITY, PAGES, SEED);
+        SyntheticNode.Adapter adapter = new SyntheticNode.Adapter();
+        List<SyntheticNode> nodes = new NodeTraversal<>(adapter).getClickableChildren(root);
+
+        assertEquals(countClickable(root), nodes.size());
+        for (int i = 1; i < nodes.size(); i++) {
+            SyntheticNode previous = nodes.get(i - 1);
+            SyntheticNode current = nodes.get(i);
+            assertTrue(previous.top < current.top
+                    || (previous.top == current.top && previous.left <= current.left));
+        }
+    }
+
+    @Test
+    public void selectNext_skipsInvisibleNodesAndWraps() {
+        SyntheticNode root = SyntheticNode.build(5, FAN_OUT, CLICKABLE_DENSITY, PAGES, SEED);
+        NodeTraversal<SyntheticNode> traversal = new NodeTraversal<>(new SyntheticNode.Adapter());
+        List<SyntheticNode> nodes = traversal.getClickableChildren(root);
+
+        int visible = 0;
+        for (SyntheticNode node : nodes)
+            if (node.isVisibleToUser()) visible++;
+        assertTrue(visible > 1);
+
+        int index = traversal.nextVisibleIndex(nodes, nodes.size() - 1, 1);
+        assertTrue(nodes.get(index).isVisibleToUser());
+        // Taking as many steps as there are visible nodes brings us back where we started
+        assertEquals(index, traversal.nextVisibleIndex(nodes, index, visible));
+
+        List<SyntheticNode> invisible = new ArrayList<>();
+        invisible.add(new SyntheticNode(true, 0, -100));
+        assertEquals(-1, traversal.nextVisibleIndex(invisible, 0, 1));
+    }
+
+    @Test
+    public void scroll_replacesTheContainerNodesAndFindsTheRevealedOnes() {
+        NodeTraversal<SyntheticNode> traversal = new NodeTraversal<>(new SyntheticNode.Adapter());
+        int[] container = {0, 100, SyntheticNode.SCREEN_WIDTH, 300};
+        SyntheticNode header = new SyntheticNode(true, 0, 0);
+        SyntheticNode item1 = new SyntheticNode(true, 0, 100);
+        SyntheticNode item2 = new SyntheticNode(true, 0, 200);
+        SyntheticNode footer = new SyntheticNode(true, 0, 2000);
+
+        List<SyntheticNode> nodes = new ArrayList<>();
+        Collections.addAll(nodes, header, item1, item2, footer);
+        List<SyntheticNode> before = new ArrayList<>();
+        Collections.addAll(before, item1, item2);
+
+        // Scrolling by a row moves item1 out and item2 up, and reveals item3
+        item2.top = 100;
+        SyntheticNode item3 = new SyntheticNode(true, 0, 200);
+        List<SyntheticNode> after = new ArrayList<>();
+        Collections.addAll(after, item2, item3);
+
+        traversal.replaceSection(nodes, before, after);
+        List<SyntheticNode> expected = new ArrayList<>();
+        Collections.addAll(expected, header, item2, item3, footer);
+        assertEquals(expected, nodes);
+        assertSame(item3, traversal.findFirstRevealed(after, container, 0, 100));
+
+        // A scroll that moves nothing reveals nothing and leaves the list as it is
+        traversal.replaceSection(nodes, after, after);
+        assertEquals(expected, nodes);
+        assertNull(traversal.findFirstRevealed(after, container, 0, 0));
+    }
+
+    @Test
+    public void scroll_treatsRecycledRowsAsRevealed() {
+        NodeTraversal<SyntheticNode> traversal = new NodeTraversal<>(new SyntheticNode.Adapter());
+        int[] container = {0, 100, SyntheticNode.SCREEN_WIDTH, 400};
+        SyntheticNode header = new SyntheticNode(true, 0, 0);
+        SyntheticNode row1 = new SyntheticNode(true, 0, 100);
+        SyntheticNode row2 = new SyntheticNode(true, 0, 200);
+        SyntheticNode row3 = new SyntheticNode(true, 0, 300);
+        SyntheticNode footer = new SyntheticNode(true, 0, 2000);
+
+        List<SyntheticNode> nodes = new ArrayList<>();
+        Collections.addAll(nodes, header, row1, row2, row3, footer);
+        List<SyntheticNode> before = new ArrayList<>();
+        Collections.addAll(before, row1, row2, row3);
+
+        // Scrolling by two rows moves row3 to the top, and row1 is recycled to show new content
+        // below it, followed by a new row4. row2 stays off screen in the recycler's pool
+        row3.top = 100;
+        row1.top = 200;
+        row2.top = -1000;
+        SyntheticNode row4 = new SyntheticNode(true, 0, 300);
+        List<SyntheticNode> after = new ArrayList<>();
+        Collections.addAll(after, row2, row3, row1, row4);
+
+        traversal.replaceSection(nodes, before, after);
+        List<SyntheticNode> expected = new ArrayList<>();
+        Collections.addAll(expected, header, row2, row3, row1, row4, footer);
+        assertEquals(expected, nodes);
+        // row1 was inside the container before, but its content is new
+        assertSame(row1, traversal.findFirstRevealed(after, container, 0, 200));
+    }
+
+    @Test
+    public void scroll_measuresTheDistanceFromTheNodesThatStayed() {
+        NodeTraversal<SyntheticNode> traversal = new NodeTraversal<>(new SyntheticNode.Adapter());
+        int[] container = {0, 100, SyntheticNode.SCREEN_WIDTH, 500};
+        SyntheticNode row1 = new SyntheticNode(true, 0, 100);
+        SyntheticNode row2 = new SyntheticNode(true, 0, 200);
+        SyntheticNode row3 = new SyntheticNode(true, 0, 300);
+        SyntheticNode row4 = new SyntheticNode(true, 0, 400);
+        List<SyntheticNode> before = new ArrayList<>();
+        Collections.addAll(before, row1, row2, row3, row4);
+        Map<SyntheticNode, int[]> positions = traversal.getPositions(before);
+
+        // A smooth scroll of 200 px, of which the last merged scroll event may only report 50 px.
+        // row1 is recycled below row4 and row2 is parked off screen
+        row3.top = 100;
+        row4.top = 200;
+        row1.top = 300;
+        row2.top = -1000;
+        SyntheticNode row5 = new SyntheticNode(true, 0, 400);
+        List<SyntheticNode> after = new ArrayList<>();
+        Collections.addAll(after, row2, row3, row4, row1, row5);
+
+        assertNull(traversal.findFirstRevealed(after, container, 0, 50));
+        int[] distance = traversal.measureScroll(positions, after);
+        assertArrayEquals(new int[] {0, 200}, distance);
+        assertSame(row1, traversal.findFirstRevealed(after, container, distance[0], distance[1]));
+
+        // Without a node that stayed in view the distance is not known
+        List<SyntheticNode> replaced = new ArrayList<>();
+        replaced.add(new SyntheticNode(true, 0, 100));
+        assertNull(traversal.measureScroll(positions, replaced));
+    }
+
+    private static int countClickable(SyntheticNode node) {
+        int count = 0;
+        for (SyntheticNode child : node.children)
+            count += (child.clickable ? 1 : 0) + countClickable(child);
+        return count;
+    }
+}
@@ -0,0 +1,118 @@
+package se.kth.youeye;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A node of a synthetic UI tree, used to exercise NodeTraversal on a plain JVM with trees that
+ * are much larger than what we can conveniently build on a device.
+ */
+public class SyntheticNode {
+
+    // The size of the screen the nodes are laid out on, nodes below it are not visible
+    public static final int SCREEN_WIDTH = 1080;
+    public static final int SCREEN_HEIGHT = 2340;
+
+    final List<SyntheticNode> children = new ArrayList<>();
+    final boolean clickable;
+    final int left;
+    // Not final, since scroll containers move the rows they recycle
+    int top;
+
+    SyntheticNode(boolean clickable, int left, int top) {
+        this.clickable = clickable;
+        this.left = left;
+        this.top = top;
+    }
+
+    boolean isVisibleToUser() {
+        return top >= 0 && top < SCREEN_HEIGHT;
+    }
+
+    /**
+     * Reads the synthetic nodes and counts the calls, which on a device would each be a
+     * binder call or at least a cache lookup.
+     */
+    public static class Adapter implements NodeAdapter<SyntheticNode> {
+        long calls;
+
+        @Override
+        public int getChildCount(SyntheticNode node) {
+            calls++;
+            return node.children.size();
+        }
+
+        @Override
+        public SyntheticNode getChild(SyntheticNode node, int index) {
+            calls++;
+            return node.children.get(index);
+        }
+
+        @Override
+        public boolean isClickable(SyntheticNode node) {
+            calls++;
+            return node.clickable;
+        }
+
+        @Override
+        public boolean isVisibleToUser(SyntheticNode node) {
+            calls++;
+            return node.isVisibleToUser();
+        }
+
+        @Override
+        public void getBoundsInScreen(SyntheticNode node, int[] outBounds) {
+            calls++;
+            outBounds[0] = node.left;
+            outBounds[1] = node.top;
+            outBounds[2] = node.left + 100;
+            outBounds[3] = node.top + 100;
+        }
+    }
+
+    /**
+     * Builds a tree where every node above the given depth has fanOut children. Nodes are
+     * spread over a number of screen heights, like a long feed, and are clickable with the
+     * given probability. The same seed always gives the same tree.
+     *
+     * @param depth the number of levels below the root
+     * @param fanOut the number of children of each inner node
+     * @param clickableDensity the probability that a node is clickable
+     * @param pages the height of the content, in screens
+     * @param seed the random seed
+     * @return the root node
+     */
+    public static SyntheticNode build(int depth, int fanOut, double clickableDensity, int pages, long seed) {
+        Random random = new Random(seed);
+        SyntheticNode root = new SyntheticNode(false, 0, 0);
+        List<SyntheticNode> level = new ArrayList<>();
+        level.add(root);
+        for (int d = 0; d < depth; d++) {
+            List<SyntheticNode> nextLevel = new ArrayList<>(level.size() * fanOut);
+            for (SyntheticNode parent : level) {
+                for (int i = 0; i < fanOut; i++) {
+                    SyntheticNode child = new SyntheticNode(random.nextDouble() < clickableDensity,
+                            random.nextInt(SCREEN_WIDTH), random.nextInt(SCREEN_HEIGHT * pages));
+                    parent.children.add(child);
+                    nextLevel.add(child);
+                }
+            }
+            level = nextLevel;
+        }
+        return root;
+    }
+
+    /**
+     * @return the number of nodes in a tree built with the given depth and fan-out
+     */
+    public static int size(int depth, int fanOut) {
+        int size = 1;
+        int levelSize = 1;
+        for (int d = 0; d < depth; d++) {
+            levelSize *= fanOut;
+            size += levelSize;
+        }
+        return size;
+    }
+}